@@ -46,6 +46,12 @@ public class PetiteMadeleineCore implements ContentManagerCallback, IRCallback {
 		
 		irService = anIRService;
 		irService.setDelegate(this);
+		
+		// data restored from the last session can be used while updating:
+		if(contentManager.hasValidData()){
+			setupIRService();
+			readyForNextRequest = true;
+		}
 	}
 
 	private void setupIRService(){
@@ -79,8 +85,14 @@ public class PetiteMadeleineCore implements ContentManagerCallback, IRCallback {
 					// update if contentManager is out of date or
 					// there has been a previous network error:
 					contentManager.updateData();
-					readyForNextRequest = false;
-					delegate.contentManagerUpdateStarted();
+					if(contentManager.hasValidData()){
+						// keep working with the restored data meanwhile:
+						setupIRService();
+						readyForNextRequest = true;
+					} else {
+						readyForNextRequest = false;
+						delegate.contentManagerUpdateStarted();
+					}
 				}
 			}
 			contentManager.createApplicationFolder(); // recreate temp folder in case it has been deleted by user
@@ -90,12 +102,9 @@ public class PetiteMadeleineCore implements ContentManagerCallback, IRCallback {
 	}
 	
 	public void onDestroy(){
-		// delete all temp files
+		// downloaded media is kept for the next session, only its size is limited
 		if(contentManager != null){
-			// delete temp files in the slideshow folder
-			contentManager.removeSlideshowData();
-			// delete all other files in the main folder
-			contentManager.removeTempData();
+			contentManager.trimStorage();
 		}
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - 
@@ -128,6 +137,14 @@ public class PetiteMadeleineCore implements ContentManagerCallback, IRCallback {
 		readyForNextRequest = contentManager.hasValidData();
 		delegate.contentMangerUpdateFinished(contentManager.hasValidData());
 	}
+	
+	public void issueAvailable(ContentManager contentManager, String issueKey) {
+		// nothing to do, requests always use the dataset of the active issue
+	}
+
+	public void issueUnavailable(ContentManager contentManager, String issueKey) {
+		// the active issue is kept, the issue can be requested again
+	}
 
 	public void irRequestFinished(String result) {
 		if (result != null) {
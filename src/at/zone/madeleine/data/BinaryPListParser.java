@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * BinaryPListParser.java
+ *
+ * Decoder for Apple binary property lists (bplist00).
+ * The file is memory-mapped and objects are located through the
+ * offset table only when they are referenced, so the table itself
+ * is never copied onto the heap.
+ *
+ * Produces the same HashMap/ArrayList/String structure as the xml
+ * parsers in PListLoader. Like those only dictionaries, arrays and
+ * strings are supported, values of any other type are skipped.
+ * Malformed data is reported as ParseException, IOException is left
+ * for failures to read the file.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+final class BinaryPListParser {
+
+	static final byte[] MAGIC = { 'b', 'p', 'l', 'i', 's', 't', '0', '0' };
+
+	private static final int TRAILER_SIZE = 32;
+	private static final int MAX_DEPTH = 256;
+
+	private static final int TYPE_ASCII_STRING = 0x5;
+	private static final int TYPE_UNICODE_STRING = 0x6;
+	private static final int TYPE_ARRAY = 0xA;
+	private static final int TYPE_DICT = 0xD;
+
+	private final ByteBuffer buffer;
+	private int offsetIntSize;
+	private int objectRefSize;
+	private long numObjects;
+	private long topObject;
+	private long offsetTableOffset;
+
+	private BinaryPListParser(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// check the first bytes of a property list for the bplist00 header:
+	static boolean isBinaryPList(byte[] header, int length) {
+		if(length < MAGIC.length){
+			return false;
+		}
+		for(int i=0;i<MAGIC.length;i++){
+			if(header[i] != MAGIC[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+	// memory-map and decode a complete binary property list file:
+	static HashMap<String, Object> hashMapFromFile(File file) throws IOException, ParseException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new BinaryPListParser(buffer).parse();
+		} finally {
+			raf.close();
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - P A R S I N G
+	// the root has been checked to be a dict, readDict() creates those as HashMap<String, Object>:
+	@SuppressWarnings("unchecked")
+	private HashMap<String, Object> parse() throws ParseException {
+		readTrailer();
+		Object root = readObject(topObject, 0);
+
+		if(root instanceof ArrayList){
+			HashMap<String, Object> container = new HashMap<String, Object>();
+			container.put("array", root);
+			return container;
+		} else if(root instanceof HashMap){
+			return (HashMap<String, Object>) root;
+		}
+		throw new ParseException("binary property list root is neither dict nor array", (int) topObject);
+	}
+
+	private void readTrailer() throws ParseException {
+		int size = buffer.limit();
+		if(size < MAGIC.length + TRAILER_SIZE){
+			throw new ParseException("binary property list too short", size);
+		}
+		int trailer = size - TRAILER_SIZE;
+		offsetIntSize = buffer.get(trailer + 6) & 0xFF;
+		objectRefSize = buffer.get(trailer + 7) & 0xFF;
+		numObjects = buffer.getLong(trailer + 8);
+		topObject = buffer.getLong(trailer + 16);
+		offsetTableOffset = buffer.getLong(trailer + 24);
+
+		if(offsetIntSize < 1 || offsetIntSize > 8 || objectRefSize < 1 || objectRefSize > 8
+				|| numObjects < 1 || numObjects > size || topObject < 0 || topObject >= numObjects
+				|| offsetTableOffset < MAGIC.length || offsetTableOffset + numObjects * offsetIntSize > trailer){
+			throw new ParseException("invalid binary property list trailer", trailer);
+		}
+	}
+	// resolve an object reference through the offset table:
+	private int offsetForObject(long ref) throws ParseException {
+		if(ref < 0 || ref >= numObjects){
+			throw new ParseException("object reference out of range: " + ref, (int) offsetTableOffset);
+		}
+		long offset = readUnsigned((int)(offsetTableOffset + ref * offsetIntSize), offsetIntSize);
+		if(offset < MAGIC.length || offset >= offsetTableOffset){
+			throw new ParseException("object offset out of range: " + offset, (int)(offsetTableOffset + ref * offsetIntSize));
+		}
+		return (int) offset;
+	}
+
+	private Object readObject(long ref, int depth) throws ParseException {
+		if(depth > MAX_DEPTH){
+			throw new ParseException("binary property list nested too deeply", offsetForObject(ref));
+		}
+		int offset = offsetForObject(ref);
+		int marker = buffer.get(offset) & 0xFF;
+		int type = marker >> 4;
+
+		switch(type){
+			case TYPE_ASCII_STRING:
+				return readAsciiString(offset);
+			case TYPE_UNICODE_STRING:
+				return readUnicodeString(offset);
+			case TYPE_ARRAY:
+				return readArray(offset, depth);
+			case TYPE_DICT:
+				return readDict(offset, depth);
+			default:
+				return null; // unsupported type
+		}
+	}
+
+	private HashMap<String, Object> readDict(int offset, int depth) throws ParseException {
+		int[] position = { offset };
+		int count = readCount(position);
+		int keyRefs = position[0];
+		checkRange(keyRefs, 2L * count * objectRefSize);
+		int valueRefs = keyRefs + count * objectRefSize;
+
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		for(int i=0;i<count;i++){
+			Object key = readObject(readUnsigned(keyRefs + i * objectRefSize, objectRefSize), depth + 1);
+			if(key instanceof String){
+				Object value = readObject(readUnsigned(valueRefs + i * objectRefSize, objectRefSize), depth + 1);
+				if(value != null){
+					data.put((String) key, value);
+				}
+			}
+		}
+		return data;
+	}
+
+	private ArrayList<Object> readArray(int offset, int depth) throws ParseException {
+		int[] position = { offset };
+		int count = readCount(position);
+		int valueRefs = position[0];
+		checkRange(valueRefs, (long) count * objectRefSize);
+
+		ArrayList<Object> data = new ArrayList<Object>(count);
+		for(int i=0;i<count;i++){
+			Object value = readObject(readUnsigned(valueRefs + i * objectRefSize, objectRefSize), depth + 1);
+			if(value != null){
+				data.add(value);
+			}
+		}
+		return data;
+	}
+
+	private String readAsciiString(int offset) throws ParseException {
+		int[] position = { offset };
+		int length = readCount(position);
+		checkRange(position[0], length);
+		char[] chars = new char[length];
+		for(int i=0;i<length;i++){
+			chars[i] = (char)(buffer.get(position[0] + i) & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	private String readUnicodeString(int offset) throws ParseException {
+		int[] position = { offset };
+		int length = readCount(position);
+		checkRange(position[0], 2L * length);
+		char[] chars = new char[length];
+		for(int i=0;i<length;i++){
+			chars[i] = buffer.getChar(position[0] + i * 2); // UTF-16 big endian
+		}
+		return new String(chars);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - utility methods:
+	// read the element count following a marker byte, position[0] is advanced past it:
+	private int readCount(int[] position) throws ParseException {
+		int marker = buffer.get(position[0]) & 0xFF;
+		int count = marker & 0x0F;
+		position[0]++;
+		if(count == 0x0F){
+			// count does not fit into the marker, an int object follows:
+			int intMarker = buffer.get(position[0]) & 0xFF;
+			if((intMarker >> 4) != 0x1){
+				throw new ParseException("invalid count marker", position[0]);
+			}
+			int intSize = 1 << (intMarker & 0x0F);
+			long longCount = readUnsigned(position[0] + 1, intSize);
+			if(longCount < 0 || longCount > Integer.MAX_VALUE){
+				throw new ParseException("invalid count", position[0]);
+			}
+			count = (int) longCount;
+			position[0] += 1 + intSize;
+		}
+		return count;
+	}
+
+	private long readUnsigned(int offset, int size) throws ParseException {
+		checkRange(offset, size);
+		long value = 0;
+		for(int i=0;i<size;i++){
+			value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+		}
+		return value;
+	}
+
+	private void checkRange(long offset, long length) throws ParseException {
+		if(offset < 0 || length < 0 || offset + length > buffer.limit()){
+			throw new ParseException("binary property list truncated", (int) Math.min(offset, Integer.MAX_VALUE));
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Catalog.java
+ *
+ * Immutable view of the data ContentManager serves: all issues,
+ * the default and the active issue and the content language.
+ * ContentManager publishes one instance at a time through an
+ * AtomicReference, every change creates a new Catalog, so readers
+ * always see a consistent state without locking.
+ *
+ * Issues are never modified once they have been added to a Catalog.
+ */
+
+package at.zone.madeleine.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+final class Catalog {
+
+	static final String DEFAULT_LANGUAGE = "de";
+	static final Catalog EMPTY = new Catalog(new HashMap<String, Issue>(), null, (String) null, DEFAULT_LANGUAGE);
+
+	final Map<String, Issue> issues;
+	final String defaultIssueKey;
+	final Issue defaultIssue;
+	final Issue activeIssue;
+	final String language;
+
+	// the active issue is looked up by key and falls back to the default issue:
+	Catalog(Map<String, Issue> issues, String defaultIssueKey, String activeIssueKey, String language) {
+		this(copyOf(issues), defaultIssueKey, issues.get(activeIssueKey), language);
+	}
+
+	private Catalog(Map<String, Issue> issues, String defaultIssueKey, Issue activeIssue, String language) {
+		this.issues = issues;
+		this.defaultIssueKey = defaultIssueKey;
+		this.defaultIssue = defaultIssueKey != null ? issues.get(defaultIssueKey) : null;
+		this.activeIssue = activeIssue != null ? activeIssue : this.defaultIssue;
+		this.language = language;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// replace all issues, the active issue is kept if it is still listed:
+	Catalog withIssues(Map<String, Issue> newIssues, String newDefaultIssueKey) {
+		Map<String, Issue> copy = copyOf(newIssues);
+		return new Catalog(copy, newDefaultIssueKey, copy.get(keyForIssue(activeIssue)), language);
+	}
+	// add or replace a single issue, an active issue with the same key is replaced too:
+	Catalog withIssue(String issueKey, Issue issue) {
+		HashMap<String, Issue> copy = new HashMap<String, Issue>(issues);
+		Issue replaced = copy.put(issueKey, issue);
+		Issue newActiveIssue = (activeIssue != null && activeIssue == replaced) ? issue : activeIssue;
+		return new Catalog(Collections.unmodifiableMap(copy), defaultIssueKey, newActiveIssue, language);
+	}
+
+	Catalog withActiveIssue(Issue issue) {
+		return new Catalog(issues, defaultIssueKey, issue, language);
+	}
+
+	Catalog withLanguage(String newLanguage) {
+		return new Catalog(issues, defaultIssueKey, activeIssue, newLanguage);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	boolean isEmpty() {
+		return issues.isEmpty();
+	}
+
+	boolean containsIssue(String issueKey) {
+		return issues.containsKey(issueKey);
+	}
+
+	Issue getIssue(String issueKey) {
+		return issues.get(issueKey);
+	}
+
+	String keyForIssue(Issue issue) {
+		if(issue == null){
+			return null;
+		}
+		for (Map.Entry<String, Issue> entry : issues.entrySet()) {
+			if(entry.getValue() == issue){
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	private static Map<String, Issue> copyOf(Map<String, Issue> issues) {
+		return Collections.unmodifiableMap(new HashMap<String, Issue>(issues));
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * CatalogSnapshot.java
+ *
+ * Compact binary copy of the Catalog, written by ContentManager
+ * after a successful update and restored when the app is started
+ * again, so data is available before the network refresh is done.
+ *
+ * Layout: magic, version, language, default/active issue key, then
+ * for every issue its key, dataset and per language the metadata,
+ * entries and media attachments. Issues that have not been loaded
+ * yet are stored with their data url and metadata only. Strings are stored as length
+ * prefixed UTF-8, a length of -1 denotes null.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import at.zone.madeleine.data.MediaAttachment.MediaType;
+
+final class CatalogSnapshot {
+
+	private static final int MAGIC = 0x4D444C43; // "MDLC"
+	private static final int VERSION = 3;
+
+	private CatalogSnapshot() {
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - W R I T I N G
+	// write to a temp file first and move it into place once it is complete:
+	static void write(Catalog catalog, File file) throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutput));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, catalog.language);
+			writeString(out, catalog.defaultIssueKey);
+			writeString(out, catalog.keyForIssue(catalog.activeIssue));
+
+			out.writeInt(catalog.issues.size());
+			for(Map.Entry<String, Issue> issue : catalog.issues.entrySet()){
+				writeString(out, issue.getKey());
+				writeIssue(out, issue.getValue());
+			}
+			out.flush();
+			fileOutput.getFD().sync();
+		} finally {
+			fileOutput.close();
+		}
+		if(!tempFile.renameTo(file)){
+			tempFile.delete();
+			throw new IOException("could not move snapshot into place");
+		}
+	}
+
+	private static void writeIssue(DataOutputStream out, Issue issue) throws IOException {
+		out.writeBoolean(issue.isLoaded());
+		if(!issue.isLoaded()){
+			writeString(out, issue.getDataUrl());
+			out.writeInt(issue.supportedLanguages.size());
+			for(String language : issue.supportedLanguages){
+				writeString(out, language);
+				writeMetaData(out, issue.metaData.get(language));
+			}
+			return;
+		}
+		writeString(out, issue.getDataset());
+		out.writeInt(issue.supportedLanguages.size());
+		for(String language : issue.supportedLanguages){
+			writeString(out, language);
+			writeMetaData(out, issue.metaData.get(language));
+
+			HashMap<String, Entry> entries = issue.entries.get(language);
+			if(entries == null){
+				out.writeInt(-1);
+				continue;
+			}
+			out.writeInt(entries.size());
+			for(Entry entry : entries.values()){
+				writeString(out, entry.key);
+				writeString(out, entry.description);
+				out.writeInt(entry.mediaAttachments.size());
+				for(MediaAttachment attachment : entry.mediaAttachments){
+					out.writeByte(attachment.type != null ? attachment.type.ordinal() : -1);
+					writeString(out, attachment.description);
+					writeString(out, attachment.url);
+				}
+			}
+		}
+	}
+
+	private static void writeMetaData(DataOutputStream out, Issue.IssueMetaData metaData) throws IOException {
+		writeString(out, metaData != null ? metaData.name : null);
+		writeString(out, metaData != null ? metaData.issue_pdf : null);
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		if(string == null){
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = string.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - R E A D I N G
+	// memory-map and read a snapshot, returns null if there is none or it is unusable:
+	static Catalog read(File file) {
+		if(!file.isFile()){
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return read(buffer);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (BufferUnderflowException e) {
+			e.printStackTrace();
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+		} catch (IndexOutOfBoundsException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	private static Catalog read(ByteBuffer in) throws IOException {
+		if(in.getInt() != MAGIC || in.getInt() != VERSION){
+			return null;
+		}
+		String language = readString(in);
+		String defaultIssueKey = readString(in);
+		String activeIssueKey = readString(in);
+
+		int issueCount = readCount(in);
+		HashMap<String, Issue> issues = new HashMap<String, Issue>();
+		for(int i=0;i<issueCount;i++){
+			String key = readString(in);
+			issues.put(key, readIssue(in));
+		}
+		return new Catalog(issues, defaultIssueKey, activeIssueKey, language != null ? language : Catalog.DEFAULT_LANGUAGE);
+	}
+
+	private static Issue readIssue(ByteBuffer in) throws IOException {
+		if(in.get() == 0){
+			Issue placeholder = Issue.createPlaceholder(readString(in));
+			int languageCount = readCount(in);
+			for(int i=0;i<languageCount;i++){
+				String language = readString(in);
+				placeholder.supportedLanguages.add(language);
+				placeholder.metaData.put(language, readMetaData(in, placeholder));
+			}
+			return placeholder;
+		}
+		Issue issue = new Issue();
+		String dataset = readString(in);
+		issue.metaData = new HashMap<String, Issue.IssueMetaData>();
+		issue.entries = new HashMap<String, HashMap<String, Entry>>();
+
+		int languageCount = readCount(in);
+		ArrayList<String> languages = new ArrayList<String>(languageCount);
+		for(int i=0;i<languageCount;i++){
+			String language = readString(in);
+			languages.add(language);
+			issue.metaData.put(language, readMetaData(in, issue));
+
+			int entryCount = in.getInt();
+			if(entryCount < 0){
+				continue;
+			}
+			HashMap<String, Entry> entries = new HashMap<String, Entry>();
+			for(int j=0;j<entryCount;j++){
+				Entry entry = new Entry();
+				entry.key = readString(in);
+				entry.description = readString(in);
+				int attachmentCount = readCount(in);
+				entry.mediaAttachments = new ArrayList<MediaAttachment>(attachmentCount);
+				for(int k=0;k<attachmentCount;k++){
+					MediaAttachment attachment = new MediaAttachment();
+					int type = in.get();
+					attachment.type = type >= 0 ? MediaType.values()[type] : null;
+					attachment.description = readString(in);
+					attachment.url = readString(in);
+					entry.mediaAttachments.add(attachment);
+				}
+				entries.put(entry.key, entry);
+			}
+			issue.entries.put(language, entries);
+		}
+		issue.supportedLanguages = languages;
+		issue.setDataset(dataset);
+		return issue;
+	}
+
+	// element counts can never exceed the remaining bytes, guards against corrupt files:
+	private static int readCount(ByteBuffer in) throws IOException {
+		int count = in.getInt();
+		if(count < 0 || count > in.remaining()){
+			throw new IOException("corrupt catalog snapshot");
+		}
+		return count;
+	}
+
+	private static Issue.IssueMetaData readMetaData(ByteBuffer in, Issue issue) throws IOException {
+		Issue.IssueMetaData metaData = issue.new IssueMetaData();
+		metaData.name = readString(in);
+		metaData.issue_pdf = readString(in);
+		return metaData;
+	}
+
+	private static String readString(ByteBuffer in) throws IOException {
+		int length = in.getInt();
+		if(length < 0){
+			return null;
+		}
+		if(length > in.remaining()){
+			throw new IOException("corrupt catalog snapshot");
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+}
@@ -23,41 +23,77 @@
 package at.zone.madeleine.data;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import android.os.Build;
 import android.os.Environment;
+import at.zone.madeleine.data.NetworkScheduler.Priority;
 
-public class ContentManager implements PListLoaderCallback {
+public class ContentManager implements PListLoaderCallback, IssueLoaderCallback, NotModifiedCallback {
 	
-	private String masterListUrl   = "";
-	private String contentLangauge = "de";
+	private volatile String masterListUrl = "";
 	
 	private enum ContentManagerState {
 		DOWNLOADING_MASTERLIST, PROCESSING_MASTERLIST, DOWNLOADING_ISSUES, INVALID_DATA, READY;
 	}
 	
 	private final int DATA_EXPIRATION_MINUTES = 60;
+	private static final int DEFAULT_FETCH_CONCURRENCY = 2;	// background issue downloads
+	private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;	// milliseconds
+	private static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+	private static final long DEFAULT_STORAGE_BUDGET = 200L * 1024 * 1024;	// bytes
 	
 	private static ContentManager instance;
 	
-	private HashMap<String, Issue> issues;
-	private String defaultIssueKey;
-	private Issue defaultIssue;
-	private Issue activeIssue;
+	// served data, replaced as a whole so readers never see a half-built state:
+	private final AtomicReference<Catalog> catalog = new AtomicReference<Catalog>(Catalog.EMPTY);
+	private final AtomicReference<ContentManagerState> state = new AtomicReference<ContentManagerState>();
 	
-	private ContentManagerState state;
-	private int issueDataToDownload;
-	private ArrayList<ContentManagerCallback> delegates;
+	private volatile ConcurrentHashMap<String, Issue> loadingIssues;	// issues of the update in progress, replace the catalog when complete
+	private volatile ArrayList<String> unpublishedIssueKeys;		// fetched but not served yet, announced with the catalog swap
+	private volatile HashMap<String, Object> masterListData;
+	private volatile String defaultIssueKey;				// default issue of the update in progress
+	
+	private volatile boolean restoredFromSnapshot = false;
+	private volatile boolean staleWhileRevalidate = true;
+	private volatile boolean progressiveLoading = false;
+	private volatile boolean defaultIssueReady = false;
+	private final AtomicReference<HashMap<String, String>> pendingIssueUrls = new AtomicReference<HashMap<String, String>>();	// issues waiting for the default issue in progressive mode
+	private volatile boolean lazyLoading = false;
+	private final ConcurrentHashMap<String, Boolean> lazyLoadsInFlight = new ConcurrentHashMap<String, Boolean>();
+	private volatile String requestedActiveIssueKey;		// issue to activate once it has been loaded
+	private volatile long dataExpirationMillis = DATA_EXPIRATION_MINUTES * 60 * 1000;
+	private volatile PListLoader masterListLoader;
+	private final AtomicInteger issueDataToDownload = new AtomicInteger();
+	private final ThreadPoolExecutor backgroundExecutor;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private final CopyOnWriteArrayList<ContentManagerCallback> delegates;
+	private final StorageManager storageManager;
+	private final DownloadCache downloadCache;
 	
 	private String mdlRootPath = Environment.getExternalStorageDirectory().toString() + "/petite_madeleine/";
 	private String captureImagePath = mdlRootPath + "madeleineCapture.jpg";
 	private String slideshowPath = mdlRootPath + "slideshow/";
 	private String pdfPath = mdlRootPath + "pdfs/";
+	private String plistCachePath = mdlRootPath + "plists/";
+	private String catalogSnapshotPath = mdlRootPath + "catalog.snapshot";
+	private String storageJournalPath = mdlRootPath + "storage.journal";
+	private String storageTempPath = mdlRootPath + "tmp/";
 	
-	private Date lastUpdate;
+	private volatile Date lastUpdate;
 	
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  I N I T A L Z A T I O N
 	public static synchronized ContentManager getInstance() {
@@ -68,88 +104,333 @@ public class ContentManager implements PListLoaderCallback {
 	}
 	// private constructor:
 	private ContentManager() {
-		this.delegates = new ArrayList<ContentManagerCallback>();
+		this.delegates = new CopyOnWriteArrayList<ContentManagerCallback>();
+		this.backgroundExecutor = createBackgroundExecutor();
+		NetworkScheduler.getInstance().setConcurrencyLimit(Priority.PREFETCH, DEFAULT_FETCH_CONCURRENCY);
 		createApplicationFolder();
+		this.storageManager = createStorageManager();
+		this.downloadCache = new DownloadCache(pdfPath, storageManager);
+		openStorage();
+		restoreSnapshot();
+	}
+	// single thread for snapshot and storage work, downloads are run by the NetworkScheduler:
+	private static ThreadPoolExecutor createBackgroundExecutor() {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ContentManager background #" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD){
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+	// media in the application folder is kept across sessions within a byte budget,
+	// metadata and the capture image are not part of it:
+	private StorageManager createStorageManager() {
+		StorageManager manager = new StorageManager(new File(mdlRootPath), new File(storageJournalPath), new File(storageTempPath), DEFAULT_STORAGE_BUDGET, new File(slideshowPath), new File(pdfPath));
+		manager.exclude(new File(plistCachePath));
+		manager.exclude(new File(catalogSnapshotPath));
+		manager.exclude(new File(catalogSnapshotPath + ".tmp"));
+		manager.exclude(new File(captureImagePath));
+		return manager;
+	}
+	// replaying the journal touches the disk, storage calls made meanwhile wait for it:
+	private void openStorage() {
+		backgroundExecutor.execute(new Runnable() {
+			public void run() {
+				storageManager.open();
+			}
+		});
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  
 	// get new metadata from network:
 	public void updateData(){
-		if(!updateInProgress()){
-			// cleanup:
-			this.issues = new HashMap<String, Issue>();
+		ContentManagerState currentState = state.get();
+		if(!isUpdating(currentState) && state.compareAndSet(currentState, ContentManagerState.DOWNLOADING_MASTERLIST)){
 			// download masterlist containing all issues and 
 			// additional configuration data (e.g.: default_issue):
-			this.state = ContentManagerState.DOWNLOADING_MASTERLIST;
-			PListLoader plLoader = new PListLoader();
-			plLoader.loadPListFromUrl(masterListUrl, this);
+			masterListLoader = newPListLoader(Priority.VISIBLE);
+			if(masterListData != null){
+				masterListLoader.setNotModifiedCallback(this);
+			}
+			masterListLoader.loadPListFromUrl(masterListUrl, this);
 		}
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  C A L L B A C K S
 	public void plistDataReady(HashMap<String, Object> data, String tag) {
-		switch(this.state){
+		switch(state.get()){
 			case DOWNLOADING_MASTERLIST:
+				updateExpiration();
 				processMasterList(data);
 				break;
-			case DOWNLOADING_ISSUES:
-				addIssue(data, tag);
+		}
+	}
+	
+	public void issueDataReady(Issue issue, String tag) {
+		if(state.get() == ContentManagerState.DOWNLOADING_ISSUES){
+			addIssue(issue, tag);
+		}
+	}
+	// server reported an unchanged master list (HTTP 304), reuse what has been parsed before:
+	public void dataNotModified(String tag) {
+		switch(state.get()){
+			case DOWNLOADING_MASTERLIST:
+				updateExpiration();
+				processMasterList(masterListData);
 				break;
 		}
 	}
 	
 	public void onNetworkError() {
-		this.state = ContentManagerState.INVALID_DATA;
-		notifyDelegatesOfNetworkError();
+		// with parallel downloads several errors can arrive for one update,
+		// only the first one is reported:
+		ContentManagerState currentState = state.get();
+		if(isUpdating(currentState) && state.compareAndSet(currentState, ContentManagerState.INVALID_DATA)){
+			notifyDelegatesOfNetworkError();
+		}
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - D E S E R I A L I Z A T I O N
 	// Processes master list and download every listed issue:
 	private void processMasterList(HashMap<String, Object> masterPListData){
-		state = ContentManagerState.PROCESSING_MASTERLIST;
+		state.set(ContentManagerState.PROCESSING_MASTERLIST);
+		this.masterListData = masterPListData;
 		try {
 			HashMap<String, Object> configData = (HashMap<String, Object>) masterPListData.get("config");
 			HashMap<String, Object> issuesData = (HashMap<String, Object>) configData.get("issues");
-			issueDataToDownload = issuesData.size();
-			defaultIssueKey = (String) configData.get("default_issue");
+			ConcurrentHashMap<String, Issue> loadingIssues = new ConcurrentHashMap<String, Issue>();
+			String defaultIssueKey = (String) configData.get("default_issue");
+			this.defaultIssueKey = defaultIssueKey;
+			this.defaultIssueReady = false;
 			
+			HashMap<String, String> issueUrls = new HashMap<String, String>();
 			for (Map.Entry<String, Object> issueMetaData : issuesData.entrySet()) {
 				String issueKey = issueMetaData.getKey();
 				HashMap<String, Object> issueData = (HashMap<String, Object>) issueMetaData.getValue();
 				String issueUrl = (String) issueData.get("data_url");
 				
-				state = ContentManagerState.DOWNLOADING_ISSUES;
-				PListLoader plLoader = new PListLoader();
-				plLoader.loadPListFromUrl(issueUrl, this, issueKey);
+				if(lazyLoading && !issueKey.equals(defaultIssueKey) && !isLoadedIssue(issueKey)){
+					// only listed for now, loaded when needed:
+					loadingIssues.put(issueKey, Issue.createPlaceholder(issueUrl, issueData));
+				} else {
+					issueUrls.put(issueKey, issueUrl);
+				}
+			}
+			this.loadingIssues = loadingIssues;
+			this.unpublishedIssueKeys = new ArrayList<String>();
+			issueDataToDownload.set(issueUrls.size());
+			
+			state.set(ContentManagerState.DOWNLOADING_ISSUES);
+			if(issueUrls.isEmpty()){
+				// e.g. lazy loading and no default issue, there is no download that could complete the update:
+				finishUpdate(loadingIssues);
+			} else if(progressiveLoading && issueUrls.containsKey(defaultIssueKey)){
+				// fetch the default issue first, the others once it is ready:
+				String defaultIssueUrl = issueUrls.remove(defaultIssueKey);
+				pendingIssueUrls.set(issueUrls);
+				loadIssue(defaultIssueKey, defaultIssueUrl);
+			} else {
+				pendingIssueUrls.set(null);
+				for (Map.Entry<String, String> issueUrl : issueUrls.entrySet()) {
+					loadIssue(issueUrl.getKey(), issueUrl.getValue());
+				}
 			}
 		} catch (NullPointerException e) {
 			e.printStackTrace();
-			state = ContentManagerState.INVALID_DATA;
+			state.set(ContentManagerState.INVALID_DATA);
 			notifyDelegatesOfSuccess();
 		}
 	}
+	private void loadIssue(String issueKey, String issueUrl){
+		// the default issue is shown first, all others are fetched in the background:
+		PListLoader plLoader = newPListLoader(issueKey.equals(defaultIssueKey) ? Priority.VISIBLE : Priority.PREFETCH);
+		// no NotModifiedCallback: the cache may hold a newer body than the served issue (from an update
+		// that failed later on), so on 304 the loader parses the cached body the validators belong to
+		plLoader.loadIssueFromUrl(issueUrl, this, issueKey);
+	}
 	// Create issue from downloaded data & check if downloads and proccesing is done:
-	private void addIssue(HashMap<String, Object> issueData, String issueKey){
-		Issue newIssue = new Issue();
-		newIssue.inflateFromHashMap(issueData);
-		this.issues.put(issueKey, newIssue);
-		issueDataToDownload--;
+	private void addIssue(Issue newIssue, String issueKey){
+		ConcurrentHashMap<String, Issue> loadingIssues = this.loadingIssues;
+		if(newIssue != null){
+			loadingIssues.put(issueKey, newIssue);
+			if(progressiveLoading){
+				publishIssue(issueKey, newIssue);
+				notifyDelegatesOfIssue(issueKey);
+			} else {
+				unpublishedIssueKeys.add(issueKey);
+			}
+		}
+		if(issueKey.equals(defaultIssueKey)){
+			// default issue is in, now fetch all others:
+			HashMap<String, String> issueUrls = pendingIssueUrls.getAndSet(null);
+			if(issueUrls != null){
+				for (Map.Entry<String, String> issueUrl : issueUrls.entrySet()) {
+					loadIssue(issueUrl.getKey(), issueUrl.getValue());
+				}
+			}
+		}
+		int remaining = issueDataToDownload.decrementAndGet();
 		
-		if(issueDataToDownload == 0){
-			this.defaultIssue = this.issues.get(defaultIssueKey);
-			this.activeIssue = this.defaultIssue;
-			state = ContentManagerState.READY;
-			// delete all old temporary files:
-			removeSlideshowData();
-			removeTempData();
-			// ContentManager is ready - notify its delegates:
-			notifyDelegatesOfSuccess();
+		if(remaining == 0){
+			finishUpdate(loadingIssues);
 		}
 		// this should not happen - it's here only to detect possible bugs:
-		if(issueDataToDownload < 0){
-			state = ContentManagerState.INVALID_DATA;
+		if(remaining < 0){
+			state.set(ContentManagerState.INVALID_DATA);
 			notifyDelegatesOfSuccess();
 		}
 	}
+	// swap in the new catalog, keep the active issue if it still exists:
+	private void finishUpdate(ConcurrentHashMap<String, Issue> loadingIssues){
+		Catalog current;
+		Catalog updated;
+		do {
+			current = catalog.get();
+			updated = current.withIssues(loadingIssues, defaultIssueKey);
+		} while(!catalog.compareAndSet(current, updated));
+		this.loadingIssues = null;
+		state.set(ContentManagerState.READY);
+		restoredFromSnapshot = false;
+		saveSnapshot(updated);
+		// media is kept for the next session, only enforce the storage budget:
+		trimStorage();
+		// the issues can be found in the catalog now:
+		for(String unpublishedIssueKey : unpublishedIssueKeys){
+			notifyDelegatesOfIssue(unpublishedIssueKey);
+		}
+		// ContentManager is ready - notify its delegates:
+		notifyDelegatesOfSuccess();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - L A Z Y  L O A D I N G
+	// download an issue that is only known from the master list, completion is reported through
+	// ContentManagerCallback.issueAvailable(), failures through issueUnavailable():
+	public void loadIssueData(Issue issue){
+		final String issueKey = catalog.get().keyForIssue(issue);
+		if(issueKey == null || issue.isLoaded() || lazyLoadsInFlight.putIfAbsent(issueKey, Boolean.TRUE) != null){
+			return;
+		}
+		
+		PListLoader plLoader = newPListLoader(Priority.USER_REQUESTED);
+		plLoader.loadIssueFromUrl(issue.getDataUrl(), new IssueLoaderCallback() {
+			public void issueDataReady(Issue loadedIssue, String tag) {
+				lazyIssueLoaded(issueKey, loadedIssue);
+			}
+			public void onNetworkError() {
+				// only this issue is missing, the update state and the catalog are not affected:
+				lazyIssueLoaded(issueKey, null);
+			}
+		}, issueKey);
+	}
+	
+	private void lazyIssueLoaded(String issueKey, Issue loadedIssue){
+		lazyLoadsInFlight.remove(issueKey);
+		if(loadedIssue == null){
+			notifyDelegatesOfIssueFailure(issueKey);
+			return;
+		}
+		// an update in progress must not bring back the placeholder:
+		ConcurrentHashMap<String, Issue> loadingIssues = this.loadingIssues;
+		if(loadingIssues != null){
+			loadingIssues.replace(issueKey, loadedIssue);
+		}
+		boolean activate = issueKey.equals(requestedActiveIssueKey);
+		Catalog current;
+		Catalog updated;
+		do {
+			current = catalog.get();
+			if(!current.containsIssue(issueKey)){
+				return;
+			}
+			updated = current.withIssue(issueKey, loadedIssue);
+			if(activate){
+				updated = updated.withActiveIssue(loadedIssue);
+			}
+		} while(!catalog.compareAndSet(current, updated));
+		if(activate){
+			this.requestedActiveIssueKey = null;
+		}
+		// the next session starts with the issue loaded:
+		saveSnapshot(updated);
+		notifyDelegatesOfIssue(issueKey);
+	}
+	
+	private boolean isLoadedIssue(String issueKey){
+		Issue issue = catalog.get().getIssue(issueKey);
+		return issue != null && issue.isLoaded();
+	}
+	// make an issue usable before the whole update is complete (progressive mode):
+	private void publishIssue(String issueKey, Issue newIssue){
+		boolean hadValidData = hasValidData();
+		Catalog current;
+		Catalog updated;
+		do {
+			current = catalog.get();
+			updated = current.withIssue(issueKey, newIssue);
+			if(issueKey.equals(defaultIssueKey) && !issueKey.equals(current.defaultIssueKey)){
+				// the default issue of this update is served as default right away:
+				updated = updated.withIssues(updated.issues, defaultIssueKey);
+			}
+		} while(!catalog.compareAndSet(current, updated));
+		
+		if(issueKey.equals(defaultIssueKey)){
+			this.defaultIssueReady = true;
+		}
+		// signal readiness as soon as the default issue can be queried:
+		if(!hadValidData && hasValidData()){
+			notifyDelegatesOfSuccess();
+		}
+	}
+	// data expires after the max-age the server sent with the master list:
+	private void updateExpiration(){
+		long maxAge = masterListLoader.getMaxAge();
+		if(maxAge >= 0){
+			dataExpirationMillis = maxAge * 1000;
+		} else {
+			dataExpirationMillis = DATA_EXPIRATION_MINUTES * 60 * 1000;
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  S N A P S H O T
+	// restore the catalog of the last session so data is available right away:
+	private void restoreSnapshot(){
+		Catalog restored = CatalogSnapshot.read(new File(catalogSnapshotPath));
+		if(restored != null && restored.defaultIssue != null){
+			this.catalog.set(restored);
+			this.defaultIssueKey = restored.defaultIssueKey;
+			this.state.set(ContentManagerState.READY);
+			this.restoredFromSnapshot = true;
+		}
+	}
+	// write the given catalog in the background, it is immutable so no copy is needed:
+	private void saveSnapshot(final Catalog snapshot){
+		final File snapshotFile = new File(catalogSnapshotPath);
+		
+		backgroundExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					CatalogSnapshot.write(snapshot, snapshotFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  U T I L I T Y  M E T H O D S
+	private PListLoader newPListLoader(Priority priority){
+		PListLoader plLoader = new PListLoader();
+		plLoader.setExecutor(NetworkScheduler.getInstance().executorFor(priority));
+		plLoader.setTimeouts(connectTimeout, readTimeout);
+		return plLoader;
+	}
+	
 	private boolean updateInProgress(){
+		return isUpdating(state.get());
+	}
+	
+	private static boolean isUpdating(ContentManagerState state){
 		return state == ContentManagerState.DOWNLOADING_MASTERLIST || state == ContentManagerState.DOWNLOADING_ISSUES || state == ContentManagerState.PROCESSING_MASTERLIST;
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  S T O R A G E
@@ -163,6 +444,23 @@ public class ContentManager implements PListLoaderCallback {
 		if(!slideshowDir.isDirectory()) {
 			slideshowDir.mkdirs();
 		}
+		File plistCacheDir = new File(plistCachePath);
+		if(!plistCacheDir.isDirectory()) {
+			plistCacheDir.mkdirs();
+		}
+		File storageTempDir = new File(storageTempPath);
+		if(!storageTempDir.isDirectory()) {
+			storageTempDir.mkdirs();
+		}
+	}
+	
+	// evict least recently used media until the storage budget is met:
+	public void trimStorage() {
+		backgroundExecutor.execute(new Runnable() {
+			public void run() {
+				storageManager.trimToBudget();
+			}
+		});
 	}
 	
 	public void removeSlideshowData() {
@@ -174,6 +472,7 @@ public class ContentManager implements PListLoaderCallback {
 				tmpf.delete();
 			}
 		}
+		storageManager.forget(slideshowDir);
 	}
 	
 	public void removeCapturedImage() {
@@ -182,19 +481,6 @@ public class ContentManager implements PListLoaderCallback {
 			capturedImage.delete();
 		}
 	}
-	
-	public void removeTempData() {
-		String path = this.mdlRootPath;
-		File appDir = new File(path);
-		if (appDir != null){
-			File[] filenames = appDir.listFiles();
-			for (File tmpf : filenames) {
-				tmpf.delete();
-			}
-		}
-		// all folders gone, create them again:
-		createApplicationFolder();
-	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  M A N A G E  D E L E G A T E S
 	public void registerDelegate(ContentManagerCallback delegate){
 		delegates.add(delegate);
@@ -211,6 +497,18 @@ public class ContentManager implements PListLoaderCallback {
 		}
 	}
 	
+	private void notifyDelegatesOfIssue(String issueKey) {
+		for(ContentManagerCallback delegate : delegates){
+			delegate.issueAvailable(this, issueKey);
+		}
+	}
+	
+	private void notifyDelegatesOfIssueFailure(String issueKey) {
+		for(ContentManagerCallback delegate : delegates){
+			delegate.issueUnavailable(this, issueKey);
+		}
+	}
+	
 	private void notifyDelegatesOfNetworkError() {
 		lastUpdate = new Date();
 		for(ContentManagerCallback delegate : delegates) {
@@ -221,57 +519,115 @@ public class ContentManager implements PListLoaderCallback {
 	public void setMasterListURL(String url) {
 		masterListUrl = url;
 	}
+	// fetch the default issue first and report readiness as soon as it is in,
+	// all other issues follow and are reported through issueAvailable():
+	public void setProgressiveLoading(boolean enabled) {
+		progressiveLoading = enabled;
+	}
+	// only download the master list, the default issue and issues that have been used before,
+	// all others are loaded by loadIssueData() or setActiveIssue() when needed:
+	public void setLazyLoading(boolean enabled) {
+		lazyLoading = enabled;
+	}
+	// keep serving the existing catalog while a refresh is running or has failed,
+	// the new catalog replaces it once it is complete:
+	public void setStaleWhileRevalidate(boolean enabled) {
+		staleWhileRevalidate = enabled;
+	}
+	// number of issues downloaded and parsed in parallel in the background:
+	public void setFetchConcurrency(int concurrency) {
+		NetworkScheduler.getInstance().setConcurrencyLimit(Priority.PREFETCH, concurrency);
+	}
+	// maximum number of bytes used for cached media, least recently used files are evicted first:
+	public void setStorageBudget(final long bytes) {
+		backgroundExecutor.execute(new Runnable() {
+			public void run() {
+				storageManager.setBudget(bytes);
+			}
+		});
+	}
+	// connect and read timeouts in milliseconds for every property list request:
+	public void setFetchTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
 	// . . . . . . . . . . . . . . . . . . . . . . . . . . . . . . C o n t e n t  A c c e s s o r s
+	// readers take one catalog and use it throughout, so issue and language always match:
 	public String getActiveContentLanguage() {
-		return contentLangauge;
+		return catalog.get().language;
 	}
 	
 	public void setActiveContentLanguage(String lang) {
-		contentLangauge = lang;
+		Catalog current;
+		do {
+			current = catalog.get();
+		} while(!catalog.compareAndSet(current, current.withLanguage(lang)));
 	}
 	
 	public Issue getActiveIssue() {
-		return activeIssue;
+		return catalog.get().activeIssue;
 	}
 
 	public String getLocalizedActiveIssueName() {
-		return activeIssue.metaData.get(contentLangauge).name;
+		Catalog current = catalog.get();
+		return current.activeIssue.metaData.get(current.language).name;
 	}
 
 	public String getLocalizedActiveIssuePdfUrl() {
+		Catalog current = catalog.get();
 		String pdfUrl = null;
-		if(activeIssue != null) {
-			pdfUrl = activeIssue.metaData.get(contentLangauge).issue_pdf;
+		if(current.activeIssue != null) {
+			pdfUrl = current.activeIssue.metaData.get(current.language).issue_pdf;
 		}
 		return pdfUrl;
 	}
 	
+	// issues that have not been loaded yet become active once their data is in:
 	public void setActiveIssue(Issue issue) {
-		activeIssue = issue;
+		if(issue != null && !issue.isLoaded()){
+			requestedActiveIssueKey = catalog.get().keyForIssue(issue);
+			loadIssueData(issue);
+		} else {
+			requestedActiveIssueKey = null;
+			Catalog current;
+			do {
+				current = catalog.get();
+			} while(!catalog.compareAndSet(current, current.withActiveIssue(issue)));
+		}
 	}
 	
 	public ArrayList<Issue> getAvailableIssues() {
-		return new ArrayList<Issue>(issues.values());
+		return new ArrayList<Issue>(catalog.get().issues.values());
 	}
 	
 	public Entry getEntryForActiveIssue(String entryKey) {
-		Entry entry = activeIssue.entries.get(contentLangauge).get(entryKey);
+		Catalog current = catalog.get();
+		Entry entry = current.activeIssue.entries.get(current.language).get(entryKey);
 		return entry;
 	}
 	
 	public String getActiveDataset() {
-		return activeIssue.getDataset();
+		return catalog.get().activeIssue.getDataset();
 	}
 	// . . . . . . . . . . . . . . . . . . . . . . . . . . . . . .  C o n t e n t M a n a g e r  S t a t e
+	// data can be queried once there is an active issue, and it is either complete or may be served
+	// before or instead of the result of an update (with stale-while-revalidate any catalog can be):
 	public boolean hasValidData() {
-		return state == ContentManagerState.READY;
+		if(catalog.get().activeIssue == null){
+			return false;
+		}
+		return state.get() == ContentManagerState.READY
+				|| staleWhileRevalidate
+				|| restoredFromSnapshot		// stays valid until an update replaces it, also if that update fails
+				|| (progressiveLoading && defaultIssueReady && updateInProgress());
 	}
 	
 	public boolean hasCurrentData() {
-		if(lastUpdate != null){
+		// retry right away after a network error:
+		Date lastUpdate = this.lastUpdate;
+		if(lastUpdate != null && state.get() != ContentManagerState.INVALID_DATA){
 			long diffMillis = new Date().getTime() - lastUpdate.getTime();
-			long thresholdMillis = DATA_EXPIRATION_MINUTES * 60 * 1000;
-			if(diffMillis < thresholdMillis){
+			if(diffMillis < dataExpirationMillis){
 				return true;
 			}
 		}
@@ -294,4 +650,16 @@ public class ContentManager implements PListLoaderCallback {
 		return pdfPath;
 	}
 	
+	public String getPListCachePath() {
+		return plistCachePath;
+	}
+	
+	public StorageManager getStorageManager() {
+		return storageManager;
+	}
+	
+	DownloadCache getDownloadCache() {
+		return downloadCache;
+	}
+	
 }
@@ -18,4 +18,6 @@ package at.zone.madeleine.data;
 
 public interface ContentManagerCallback extends NetworkTaskCallback {
 	public void contentManagerFinished(ContentManager contentManager);
+	public void issueAvailable(ContentManager contentManager, String issueKey);
+	public void issueUnavailable(ContentManager contentManager, String issueKey);
 }
\ No newline at end of file
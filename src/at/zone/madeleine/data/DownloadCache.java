@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * DownloadCache.java
+ *
+ * Content addressed store for files downloaded by FileDownloader.
+ * Files are named after the SHA-1 of their content, keep the extension
+ * of their url and are spread over sub folders by the first two hex
+ * digits of the hash (e.g. pdfs/3f/3f2a...e1.pdf), so identical files
+ * referenced by several urls are stored once.
+ *
+ * The index maps full urls to content names. It is read once, kept in
+ * memory and appended to for every new download, so lookups never list
+ * a folder. Blobs evicted by the StorageManager simply miss.
+ *
+ * Interrupted downloads are kept as partial/<url hash>.part together
+ * with the validators of the response (.meta), so FileDownloader can
+ * resume them with a Range request. Partials that can not be resumed
+ * or have not been touched for a week are removed when the index is
+ * loaded, they are not part of the storage budget.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+final class DownloadCache {
+
+	private static final String INDEX_FILENAME = "index";
+	private static final String PARTIAL_FOLDER = "partial";
+	private static final String ETAG = "ETag";
+	private static final String LAST_MODIFIED = "Last-Modified";
+	private static final long PARTIAL_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;	// milliseconds
+
+	private final File directory;
+	private final File indexFile;
+	private final File partialDir;
+	private final StorageManager storageManager;
+	private HashMap<String, String> index;		// url -> content name, loaded on first use
+	private Writer indexWriter;
+
+	DownloadCache(String path, StorageManager storageManager) {
+		this.directory = new File(path);
+		this.indexFile = new File(directory, INDEX_FILENAME);
+		this.partialDir = new File(directory, PARTIAL_FOLDER);
+		this.storageManager = storageManager;
+		storageManager.exclude(indexFile);
+		storageManager.exclude(partialDir);
+		storageManager.exclude(new File(indexFile.getPath() + ".tmp"));
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// cached file for the url or null, costs a single stat:
+	synchronized File get(String url) {
+		loadIndex();
+		String contentName = index.get(url);
+		if(contentName == null){
+			return null;
+		}
+		File file = fileForContent(contentName);
+		if(!file.isFile()){
+			index.remove(url);
+			return null;
+		}
+		storageManager.recordAccess(file);
+		return file;
+	}
+	// store a completely downloaded file under the hash of its content,
+	// contentHash may be null for partial files that were not written in order:
+	synchronized File put(String url, PendingFile pendingFile, byte[] contentHash) throws IOException {
+		if(contentHash == null){
+			MessageDigest contentDigest = newContentDigest();
+			digestFile(getPartialFile(url), contentDigest);
+			contentHash = contentDigest.digest();
+		}
+		loadIndex();
+		String contentName = toHex(contentHash) + extensionOf(url);
+		File file = fileForContent(contentName);
+		if(file.isFile()){
+			// same content is already stored for another url
+			pendingFile.abort();
+			storageManager.recordAccess(file);
+		} else {
+			file.getParentFile().mkdirs();
+			pendingFile.commit(file);
+		}
+		if(!contentName.equals(index.put(url, contentName))){
+			appendToIndex(url, contentName);
+		}
+		getPartialMetaFile(url).delete();
+		return file;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  P A R T I A L  D O W N L O A D S
+	// write the body of a download to its partial file, append continues an interrupted one
+	// and feeds the bytes already there into the content digest:
+	PendingFile beginPartial(String url, boolean append, MessageDigest contentDigest) throws IOException {
+		if(!partialDir.isDirectory()){
+			partialDir.mkdirs();
+		}
+		File partialFile = getPartialFile(url);
+		if(append){
+			digestFile(partialFile, contentDigest);
+		}
+		return new PendingFile(storageManager, partialFile, null, append);
+	}
+	// number of bytes that can be resumed, 0 if there is nothing or no usable validator:
+	long getResumableLength(String url) {
+		File partialFile = getPartialFile(url);
+		if(!partialFile.isFile() || getIfRangeValidator(url) == null){
+			return 0;
+		}
+		return partialFile.length();
+	}
+	// strong ETag or Last-Modified of the partial download, as required for If-Range:
+	String getIfRangeValidator(String url) {
+		Properties validators = readPartialValidators(url);
+		if(validators == null){
+			return null;
+		}
+		String etag = validators.getProperty(ETAG);
+		if(etag != null && !etag.startsWith("W/")){
+			return etag;
+		}
+		return validators.getProperty(LAST_MODIFIED);
+	}
+	// remember the validators of a response so its body can be resumed:
+	void setPartialValidators(String url, String etag, String lastModified) {
+		File metaFile = getPartialMetaFile(url);
+		if(etag == null && lastModified == null){
+			metaFile.delete();
+			return;
+		}
+		Properties validators = new Properties();
+		if(etag != null){
+			validators.setProperty(ETAG, etag);
+		}
+		if(lastModified != null){
+			validators.setProperty(LAST_MODIFIED, lastModified);
+		}
+		partialDir.mkdirs();
+		try {
+			OutputStream out = new FileOutputStream(metaFile);
+			try {
+				validators.store(out, url);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			metaFile.delete();
+		}
+	}
+
+	void removePartial(String url) {
+		getPartialFile(url).delete();
+		getPartialMetaFile(url).delete();
+	}
+	// runs before the first download of a session, so none of the partials is being written:
+	private void removeStalePartials() {
+		File[] files = partialDir.listFiles();
+		if(files == null){
+			return;
+		}
+		long oldest = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+		for(File file : files){
+			String name = file.getName();
+			String baseName = name.substring(0, name.lastIndexOf('.') + 1);
+			File metaFile = new File(partialDir, baseName + "meta");
+			if(name.endsWith(".part")){
+				// without validators a partial can never be resumed:
+				if(file.lastModified() < oldest || !metaFile.isFile()){
+					file.delete();
+					metaFile.delete();
+				}
+			} else if(!new File(partialDir, baseName + "part").exists()){
+				file.delete();
+			}
+		}
+	}
+
+	private static void digestFile(File file, MessageDigest digest) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) > 0){
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private File getPartialFile(String url) {
+		return new File(partialDir, PListCache.hashKey(url) + ".part");
+	}
+
+	private File getPartialMetaFile(String url) {
+		return new File(partialDir, PListCache.hashKey(url) + ".meta");
+	}
+
+	private Properties readPartialValidators(String url) {
+		File metaFile = getPartialMetaFile(url);
+		if(!metaFile.isFile()){
+			return null;
+		}
+		Properties validators = new Properties();
+		try {
+			InputStream in = new FileInputStream(metaFile);
+			try {
+				validators.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return validators;
+	}
+
+	static MessageDigest newContentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  I N D E X
+	// index lines are "<content name> <url>", later lines win:
+	private void loadIndex() {
+		if(index != null){
+			return;
+		}
+		index = new HashMap<String, String>();
+		removeStalePartials();
+		if(!indexFile.isFile()){
+			return;
+		}
+		int lines = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null){
+				int separator = line.indexOf(' ');
+				if(separator > 0){
+					index.put(line.substring(separator + 1), line.substring(0, separator));
+					lines++;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if(reader != null){
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		if(lines > 2 * index.size()){
+			rewriteIndex();
+		}
+	}
+
+	private void appendToIndex(String url, String contentName) {
+		try {
+			if(indexWriter == null){
+				directory.mkdirs();
+				indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+			}
+			indexWriter.write(contentName + " " + url + "\n");
+			indexWriter.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void rewriteIndex() {
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+				for(Map.Entry<String, String> entry : index.entrySet()){
+					writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+				}
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if(!tempFile.renameTo(indexFile)){
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	private File fileForContent(String contentName) {
+		return new File(new File(directory, contentName.substring(0, 2)), contentName);
+	}
+	// extension of the last path segment, used by viewers to detect the file type:
+	private static String extensionOf(String url) {
+		String path = url;
+		int end = path.length();
+		int query = path.indexOf('?');
+		if(query >= 0){
+			end = query;
+		}
+		int fragment = path.indexOf('#');
+		if(fragment >= 0 && fragment < end){
+			end = fragment;
+		}
+		path = path.substring(0, end);
+		String filename = path.substring(path.lastIndexOf('/') + 1);
+		int dot = filename.lastIndexOf('.');
+		if(dot < 0 || filename.length() - dot > 6){
+			return "";
+		}
+		return filename.substring(dot).toLowerCase();
+	}
+
+	private static String toHex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for(byte b : hash){
+			hex.append(Character.forDigit((b >> 4) & 0x0F, 16));
+			hex.append(Character.forDigit(b & 0x0F, 16));
+		}
+		return hex.toString();
+	}
+
+}
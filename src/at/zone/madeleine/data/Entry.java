@@ -21,10 +21,16 @@
  */
 package at.zone.madeleine.data;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import at.zone.madeleine.data.MediaAttachment.MediaType;
+
 public class Entry {
 	
 	public String key;
@@ -54,6 +60,28 @@ public class Entry {
 		}
 		this.mediaAttachments = attachments;
 	}
+	// create Entry directly from the <dict> the parser is positioned on:
+	void inflateFromParser(String key, XmlPullParser parser) throws XmlPullParserException, IOException {
+		this.key = key;
+		ArrayList<MediaAttachment> attachments = new ArrayList<MediaAttachment>();
+		while(PListPullParser.nextChildElement(parser)){
+			String dkey = PListPullParser.readKey(parser);
+			if(!PListPullParser.nextChildElement(parser)){
+				break;
+			}
+			MediaType type = null;
+			if(dkey.equalsIgnoreCase("description")){
+				this.description = PListPullParser.readString(parser);
+			} else if((type = MediaAttachment.checkMediaType(dkey)) != null && PListPullParser.isDictionaryElement(parser)){
+				MediaAttachment newAttachment = new MediaAttachment();
+				newAttachment.inflateFromParser(type, parser);
+				attachments.add(newAttachment);
+			} else {
+				PListPullParser.skip(parser);
+			}
+		}
+		this.mediaAttachments = attachments;
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 	// convenience method to directly get the entry if there is only one:
 	public MediaAttachment getSingleAttachment(){
@@ -20,4 +20,6 @@ import java.io.File;
 
 public interface FileDownloadCallback extends NetworkTaskCallback {
 	public void downloadFinished(File file);
+	// totalBytes is -1 if the server did not send a length:
+	public void downloadProgress(long downloadedBytes, long totalBytes);
 }
@@ -17,84 +17,176 @@
 package at.zone.madeleine.data;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.SystemClock;
+import at.zone.madeleine.data.NetworkScheduler.Priority;
 
 public class FileDownloader {
 	
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	private static final int SEGMENTED_MIN_SIZE = 4 * 1024 * 1024;	// bytes
+	private static final int SEGMENT_COUNT = 4;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;	// bytes
+	private static final long DEFAULT_PROGRESS_INTERVAL = 16;	// milliseconds, about one frame
+	
+	private static final ThreadPoolExecutor segmentExecutor = createSegmentExecutor();
+	// shared by all instances, so every url is only transferred once at a time:
+	private static final InFlightRequests<FileDownloadCallback> inFlightDownloads = new InFlightRequests<FileDownloadCallback>();
+	
+	private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+	private Priority priority = Priority.USER_REQUESTED;
+	
 	public void downloadFile(String url, FileDownloadCallback delegate){
-		new FileDownloadAsyncTask().execute(url, delegate);
+		// a download of the same url that is already running reports to this delegate as well:
+		if(inFlightDownloads.attach(url, delegate)){
+			NetworkScheduler.execute(new FileDownloadAsyncTask(url, delegate, progressInterval, priority), priority, new Object[0]);
+		}
+	}
+	// minimum time between two downloadProgress() callbacks in milliseconds:
+	public void setProgressInterval(long millis){
+		progressInterval = millis;
+	}
+	// downloads are user requested by default, use PREFETCH for files the user has not asked for yet:
+	public void setPriority(Priority priority){
+		this.priority = priority;
 	}
 	
-	private class FileDownloadAsyncTask extends AsyncTask<Object, Void, File> {
+	private class FileDownloadAsyncTask extends AsyncTask<Object, Long, File> {
 		
-		private FileDownloadCallback delegate;
+		private final String url;
+		private final FileDownloadCallback owner;
 		private boolean networkError = false;
+		private final long progressInterval;
+		private final Priority priority;
+		private final AtomicLong downloadedBytes = new AtomicLong();
+		private final AtomicLong lastProgressTime = new AtomicLong();
+		private volatile long totalBytes = -1;
+		
+		FileDownloadAsyncTask(String url, FileDownloadCallback owner, long progressInterval, Priority priority) {
+			this.url = url;
+			this.owner = owner;
+			this.progressInterval = progressInterval;
+			this.priority = priority;
+		}
 		
 		@Override
 		protected File doInBackground(Object... arg0) {
-			String url = (String) arg0[0];
-			this.delegate = (FileDownloadCallback) arg0[1];
 			return downloadFile(url);
 		}
 		
+		@Override
+		protected void onProgressUpdate(Long... progress){
+			for(FileDownloadCallback delegate : inFlightDownloads.getListeners(url)){
+				delegate.downloadProgress(progress[0], progress[1]);
+			}
+		}
+		
 		@Override
 		protected void onPostExecute(File file){
-			if(networkError){
-				delegate.onNetworkError();
-			} else {
-				delegate.downloadFinished(file);
+			for(FileDownloadCallback delegate : inFlightDownloads.complete(url, owner)){
+				if(networkError){
+					delegate.onNetworkError();
+				} else {
+					delegate.downloadFinished(file);
+				}
 			}
 		}
 		
 		private File downloadFile(String urlString){
-			File file = null;
+			DownloadCache cache = ContentManager.getInstance().getDownloadCache();
+			// files are cached by their full url, no need to connect if it is already there:
+			File file = cache.get(urlString);
+			if (file != null) {
+				return file;
+			}
+			PendingFile pendingFile = null;
+			HttpRequest request = null;
 			
-			URL url;
 			try {
-				url = new URL(urlString);
-				HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
-				urlConnection.setRequestMethod("GET");
-				urlConnection.setDoOutput(true);
-				urlConnection.connect();
-				
-				File SDCardRoot = new File(ContentManager.getInstance().getApplicationFolderPath());
-				String[] urlParts = urlString.split("/");
-				String filename = urlParts[urlParts.length-1];
+				long resumeFrom = cache.getResumableLength(urlString);
+				// byte offsets and lengths refer to the file itself, so no transfer compression:
+				request = HttpConnector.getInstance().open(urlString, false);
+				if (resumeFrom > 0) {
+					// continue an interrupted download, the server sends the whole file if it has changed
+					request.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+					request.setRequestProperty("If-Range", cache.getIfRangeValidator(urlString));
+				}
 				
-				if (!isFileAlreadyOnDisk(filename)) {
-					file = new File(SDCardRoot, filename);
-					//this will be used to write the downloaded data into the file we created
-					FileOutputStream fileOutput = new FileOutputStream(file);
-					//this will be used in reading the data from the internet
-					InputStream inputStream = urlConnection.getInputStream();
-					int totalSize = urlConnection.getContentLength();
-					int downloadedSize = 0;
-					
-					// create a buffer
-					byte[] buffer = new byte[1024];
-					int bufferLength = 0; // used to store a temporary size of the buffer
-					// now, read through the input buffer and write the contents to the file
-					while ( (bufferLength = inputStream.read(buffer)) > 0 ) {
-							fileOutput.write(buffer, 0, bufferLength);
-							downloadedSize += bufferLength;
+				int responseCode = request.getResponseCode();
+				boolean resumed = resumeFrom > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL && isRangeFrom(request, resumeFrom);
+				if (resumeFrom > 0 && responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+					// partial file does not match the resource anymore, start over
+					request.close();
+					request = null;
+					cache.removePartial(urlString);
+					return downloadFile(urlString);
+				}
+				if (!resumed && responseCode != HttpURLConnection.HTTP_OK) {
+					if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+						cache.removePartial(urlString); // range does not fit the partial file
 					}
-					fileOutput.close();
+					throw new IOException("unexpected response code " + responseCode + " for " + urlString);
+				}
+				cache.setPartialValidators(urlString, request.getHeaderField("ETag"), request.getHeaderField("Last-Modified"));
+				
+				String validator = cache.getIfRangeValidator(urlString);
+				long contentLength = request.getContentLength();
 				
+				if (!resumed && isSegmentable(request, validator)) {
+					// large file on a range capable server, fetch it over several connections
+					pendingFile = cache.beginPartial(urlString, false, null);
+					startProgress(0, contentLength);
+					try {
+						downloadSegmented(request, urlString, validator, contentLength, pendingFile);
+						request = null; // aborted after the first segment
+					} catch (IOException e) {
+						// segments are not written in order, so this can not be resumed
+						pendingFile.abort();
+						cache.removePartial(urlString);
+						throw e;
+					}
+					file = cache.put(urlString, pendingFile, null);
 				} else {
-					// file already there, just grab it
-					file = new File(ContentManager.getInstance().getApplicationFolderPath().concat(filename));
+					// download into the partial file, it is moved into the cache once complete
+					MessageDigest contentDigest = DownloadCache.newContentDigest();
+					pendingFile = cache.beginPartial(urlString, resumed, contentDigest);
+					long downloadedSize = resumed ? resumeFrom : 0;
+					long totalSize = contentLength >= 0 ? downloadedSize + contentLength : -1;
+					startProgress(downloadedSize, totalSize);
+					
+					InputStream inputStream = request.getInputStream();
+					downloadedSize += copy(inputStream, pendingFile.getChannel(), downloadedSize, -1, contentDigest, this);
+					if (totalSize >= 0 && downloadedSize != totalSize) {
+						throw new IOException("incomplete download of " + urlString);
+					}
+					file = cache.put(urlString, pendingFile, contentDigest.digest());
+					request.close();
+					request = null;
 				}
 				
-				urlConnection.disconnect();
-				
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
 			} catch (ProtocolException e) {
@@ -102,26 +194,199 @@ public class FileDownloader {
 			} catch (IOException e) {
 				e.printStackTrace();
 				networkError = true;
-				file.delete(); // remove (partially complete) temp file!
+				file = null;
+			} finally {
+				if (request != null) {
+					request.abort(); // failed or cancelled in the middle of the body
+				}
+				if (pendingFile != null) {
+					pendingFile.suspend(); // keep the partial file to resume the download next time
+				}
 			}
 			
 			return file;
 		}
 		
-		private boolean isFileAlreadyOnDisk(String filename) {
-			boolean fileExists = false;
-			File appDir = new File(ContentManager.getInstance().getApplicationFolderPath());
-			if (appDir != null && appDir.isDirectory()){
-				File[] filenames = appDir.listFiles();
-				for (File tmpf : filenames){ 
-					if(tmpf.getName().equalsIgnoreCase(filename)){
-						fileExists = true;
+		private void startProgress(long downloaded, long total) {
+			downloadedBytes.set(downloaded);
+			totalBytes = total;
+			publishProgress(downloaded, total);
+		}
+		
+		// called from the download threads, callbacks are throttled to one per progress interval:
+		void addProgress(long bytes) {
+			long downloaded = downloadedBytes.addAndGet(bytes);
+			long now = SystemClock.uptimeMillis();
+			long last = lastProgressTime.get();
+			if ((now - last >= progressInterval || downloaded == totalBytes) && lastProgressTime.compareAndSet(last, now)) {
+				publishProgress(downloaded, totalBytes);
+			}
+		}
+		
+		// called from the download threads between two buffers, pauses while interactive requests are running:
+		void awaitTurn() throws InterruptedIOException {
+			try {
+				NetworkScheduler.getInstance().awaitTurn(priority);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("download cancelled");
+			}
+		}
+		
+		// segments are only requested if the server supports ranges and the file can be identified:
+		private boolean isSegmentable(HttpRequest request, String validator) {
+			return validator != null
+					&& request.getContentLength() >= SEGMENTED_MIN_SIZE
+					&& "bytes".equalsIgnoreCase(request.getHeaderField("Accept-Ranges"));
+		}
+		
+		// the first segment is read from the response that is already open, the others are requested with Range:
+		private void downloadSegmented(HttpRequest request, String url, String validator, long totalSize, PendingFile pendingFile) throws IOException {
+			pendingFile.setLength(totalSize);
+			FileChannel channel = pendingFile.getChannel();
+			long segmentSize = (totalSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+			
+			ArrayList<Future<Void>> segments = new ArrayList<Future<Void>>();
+			try {
+				for (int i = 1; i < SEGMENT_COUNT; i++) {
+					long start = i * segmentSize;
+					long end = Math.min(start + segmentSize, totalSize) - 1;
+					if (start <= end) {
+						segments.add(segmentExecutor.submit(new SegmentDownload(url, validator, start, end, channel, this)));
 					}
 				}
+				copySegment(request.getInputStream(), channel, 0, Math.min(segmentSize, totalSize) - 1, this);
+				// the response carries the whole file, closing it would read the rest of it:
+				request.abort();
+				for (Future<Void> segment : segments) {
+					segment.get();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("segmented download interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				IOException exception = new IOException("segment download failed");
+				exception.initCause(e.getCause());
+				throw exception;
+			} finally {
+				for (Future<Void> segment : segments) {
+					segment.cancel(true);
+				}
+			}
+		}
+		
+		// a 206 response must continue exactly where the partial file ends:
+		private boolean isRangeFrom(HttpRequest request, long offset) {
+			String contentRange = request.getHeaderField("Content-Range");
+			return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+		}
+		
+	}
+	
+	/**
+	 * Downloads one byte range of a file and writes it to its position.
+	 */
+	private static class SegmentDownload implements Callable<Void> {
+		
+		private final String url;
+		private final String validator;
+		private final long start;
+		private final long end;
+		private final FileChannel channel;
+		private final FileDownloadAsyncTask task;
+		
+		SegmentDownload(String url, String validator, long start, long end, FileChannel channel, FileDownloadAsyncTask task) {
+			this.url = url;
+			this.validator = validator;
+			this.start = start;
+			this.end = end;
+			this.channel = channel;
+			this.task = task;
+		}
+		
+		public Void call() throws IOException {
+			HttpRequest request = HttpConnector.getInstance().open(url, false);
+			boolean complete = false;
+			try {
+				request.setRequestProperty("Range", "bytes=" + start + "-" + end);
+				// the whole file is sent instead if it has changed in the meantime:
+				request.setRequestProperty("If-Range", validator);
+				int responseCode = request.getResponseCode();
+				String contentRange = request.getHeaderField("Content-Range");
+				if (responseCode != HttpURLConnection.HTTP_PARTIAL
+						|| contentRange == null || !contentRange.startsWith("bytes " + start + "-" + end + "/")) {
+					throw new IOException("server did not return segment " + start + "-" + end + " of " + url);
+				}
+				copySegment(request.getInputStream(), channel, start, end, task);
+				complete = true;
+			} finally {
+				if (complete) {
+					request.close();
+				} else {
+					request.abort();
+				}
 			}
-			return fileExists;
+			return null;
 		}
 		
 	}
 	
+	// copy exactly the bytes start..end (inclusive) to their position in the file:
+	private static void copySegment(InputStream inputStream, FileChannel channel, long start, long end, FileDownloadAsyncTask task) throws IOException {
+		long length = end - start + 1;
+		if (copy(inputStream, channel, start, length, null, task) != length) {
+			throw new IOException("segment " + start + "-" + end + " ended early");
+		}
+	}
+	
+	// copy the stream to the file starting at position through a direct buffer, at most maxBytes if it is not negative,
+	// the data is also fed into the digest if one is given, returns the number of bytes copied:
+	private static long copy(InputStream inputStream, FileChannel channel, long position, long maxBytes, MessageDigest digest, FileDownloadAsyncTask task) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(inputStream);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+		long copied = 0;
+		while (maxBytes < 0 || copied < maxBytes) {
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException("download cancelled");
+			}
+			task.awaitTurn();
+			buffer.clear();
+			if (maxBytes >= 0 && maxBytes - copied < buffer.capacity()) {
+				buffer.limit((int) (maxBytes - copied));
+			}
+			int read = source.read(buffer);
+			if (read < 0) {
+				break;
+			}
+			buffer.flip();
+			if (digest != null) {
+				digest.update(buffer.duplicate());
+			}
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			copied += read;
+			task.addProgress(read);
+		}
+		return copied;
+	}
+	
+	// threads for the additional segments, the first one is loaded by the download task itself:
+	private static ThreadPoolExecutor createSegmentExecutor() {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "FileDownloader segment #" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(SEGMENT_COUNT - 1, SEGMENT_COUNT - 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+	
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * HttpConnector.java
+ *
+ * Shared HTTP layer for property lists, files, slideshow images and
+ * image recognition queries. All requests go through HttpURLConnection,
+ * which keeps connections to a host alive and reuses them as long as
+ * response bodies are read to the end and closed through HttpRequest,
+ * so slides from the same CDN host do not pay a new handshake each.
+ *
+ * Requests get the same connect and read timeouts, ask for gzip unless
+ * they read byte ranges, and report their timing to a listener.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+public class HttpConnector {
+
+	private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;	// milliseconds
+	private static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+	private static final int MAX_IDLE_CONNECTIONS = 8;	// per host, enough for all scheduled transfers
+
+	private static HttpConnector instance;
+
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile HttpTimingListener timingListener;
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  I N I T A L Z A T I O N
+	public static synchronized HttpConnector getInstance() {
+		if(instance == null){
+			instance = new HttpConnector();
+		}
+		return instance;
+	}
+
+	private HttpConnector() {
+		// read by the connection pool when it is first used:
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// request with gzip transfer decoding, for documents and images:
+	public HttpRequest open(String url) throws IOException {
+		return open(url, true);
+	}
+	// compressed has to be false for byte ranges and lengths that refer to the file itself:
+	public HttpRequest open(String url, boolean compressed) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		// set explicitly, otherwise newer platforms add gzip on their own and hide it from us:
+		connection.setRequestProperty("Accept-Encoding", compressed ? "gzip" : "identity");
+		return new HttpRequest(url, connection, this);
+	}
+	// default timeouts in milliseconds for new requests:
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	public void setTimingListener(HttpTimingListener listener) {
+		this.timingListener = listener;
+	}
+
+	void requestTimed(String url, int responseCode, long connectMillis, long firstByteMillis, long transferMillis, long bytes) {
+		HttpTimingListener listener = timingListener;
+		if(listener != null){
+			listener.requestTimed(url, responseCode, connectMillis, firstByteMillis, transferMillis, bytes);
+		}
+	}
+
+}
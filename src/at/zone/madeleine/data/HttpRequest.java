@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * HttpRequest.java
+ *
+ * One request made through the HttpConnector. Wraps the connection to
+ * decode gzip bodies, count the bytes received and time the request.
+ * The connection goes back to the pool when the body has been read and
+ * close() is called, abort() drops it, e.g. when a transfer is cancelled.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+
+import android.os.SystemClock;
+
+public class HttpRequest {
+
+	private final String url;
+	private final HttpURLConnection connection;
+	private final HttpConnector connector;
+	private final long startTime;
+	private long connectedTime = -1;
+	private long responseTime = -1;
+	private int responseCode = -1;
+	private long receivedBytes = 0;
+	private InputStream body;
+	private boolean finished = false;
+
+	HttpRequest(String url, HttpURLConnection connection, HttpConnector connector) {
+		this.url = url;
+		this.connection = connection;
+		this.connector = connector;
+		this.startTime = SystemClock.uptimeMillis();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  R E Q U E S T
+	// underlying connection, e.g. to set the request method or a streaming mode:
+	public HttpURLConnection getConnection() {
+		return connection;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setRequestProperty(String field, String value) {
+		connection.setRequestProperty(field, value);
+	}
+
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+	}
+	// open the socket or take one from the pool:
+	public void connect() throws IOException {
+		if(connectedTime < 0){
+			connection.connect();
+			connectedTime = SystemClock.uptimeMillis();
+		}
+	}
+	// request body, connects first:
+	public OutputStream getOutputStream() throws IOException {
+		connect();
+		return connection.getOutputStream();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  R E S P O N S E
+	// sends the request if needed and waits for the response headers:
+	public int getResponseCode() throws IOException {
+		if(responseCode < 0){
+			connect();
+			responseCode = connection.getResponseCode();
+			responseTime = SystemClock.uptimeMillis();
+		}
+		return responseCode;
+	}
+
+	public String getHeaderField(String field) {
+		return connection.getHeaderField(field);
+	}
+	// length of the decoded body, -1 if unknown or compressed:
+	public int getContentLength() {
+		if(isGzipEncoded()){
+			return -1;
+		}
+		return connection.getContentLength();
+	}
+	// decoded response body, read it to the end and call close() to keep the connection alive:
+	public InputStream getInputStream() throws IOException {
+		if(body == null){
+			getResponseCode();
+			InputStream stream = new CountingInputStream(connection.getInputStream());
+			if(isGzipEncoded()){
+				stream = new GZIPInputStream(stream);
+			}
+			body = stream;
+		}
+		return body;
+	}
+	// release the connection for the next request to the same host:
+	public void close() {
+		try {
+			if(body != null){
+				body.close();
+			} else {
+				// nothing read (e.g. 304), closing the empty body keeps the connection usable:
+				connection.getInputStream().close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+		finish();
+	}
+	// close the socket without reading the rest of the body:
+	public void abort() {
+		connection.disconnect();
+		finish();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	private boolean isGzipEncoded() {
+		return "gzip".equalsIgnoreCase(connection.getHeaderField("Content-Encoding"));
+	}
+
+	private void finish() {
+		if(finished || responseTime < 0){
+			return;
+		}
+		finished = true;
+		long now = SystemClock.uptimeMillis();
+		connector.requestTimed(url, responseCode, connectedTime - startTime, responseTime - connectedTime, now - responseTime, receivedBytes);
+	}
+	// counts the bytes as they arrive, before decoding:
+	private class CountingInputStream extends FilterInputStream {
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0){
+				receivedBytes++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = in.read(buffer, offset, count);
+			if(read > 0){
+				receivedBytes += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			receivedBytes += skipped;
+			return skipped;
+		}
+
+	}
+
+}
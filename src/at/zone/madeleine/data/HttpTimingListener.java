@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.zone.madeleine.data;
+
+public interface HttpTimingListener {
+	// called from the network thread once a response body has been closed, times in milliseconds:
+	// connect until the socket was ready (0 for pooled connections), firstByte until the response headers
+	// had arrived, transfer until the body was read, bytes as received on the wire
+	public void requestTimed(String url, int responseCode, long connectMillis, long firstByteMillis, long transferMillis, long bytes);
+}
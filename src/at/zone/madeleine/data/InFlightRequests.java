@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * InFlightRequests.java
+ *
+ * Registry of running transfers keyed by url, used by FileDownloader
+ * and ImageDownloader to coalesce concurrent requests for the same url.
+ * The first listener attached for a url owns the transfer and starts it,
+ * later ones are only added to its listeners and receive the same result.
+ */
+
+package at.zone.madeleine.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class InFlightRequests<L> {
+
+	private final HashMap<String, Request<L>> requests = new HashMap<String, Request<L>>();
+
+	// attach a listener, returns true if it is the first one and has to start the transfer:
+	public synchronized boolean attach(String key, L listener) {
+		Request<L> request = requests.get(key);
+		if(request == null){
+			requests.put(key, new Request<L>(listener));
+			return true;
+		}
+		if(!request.listeners.contains(listener)){
+			request.listeners.add(listener);
+		}
+		return false;
+	}
+	// listeners currently waiting for a transfer, e.g. to report its progress:
+	public synchronized List<L> getListeners(String key) {
+		Request<L> request = requests.get(key);
+		if(request == null){
+			return new ArrayList<L>();
+		}
+		return new ArrayList<L>(request.listeners);
+	}
+	// remove a listener that is not interested anymore, returns the owner
+	// of the transfer if nobody is waiting for it, so it can be cancelled:
+	public synchronized L detach(String key, L listener) {
+		Request<L> request = requests.get(key);
+		if(request == null || !request.listeners.remove(listener) || !request.listeners.isEmpty()){
+			return null;
+		}
+		requests.remove(key);
+		return request.owner;
+	}
+	// end the transfer started by owner, returns all listeners waiting for its result:
+	public synchronized List<L> complete(String key, L owner) {
+		Request<L> request = requests.get(key);
+		if(request == null || request.owner != owner){
+			return new ArrayList<L>();
+		}
+		requests.remove(key);
+		return request.listeners;
+	}
+
+	private static class Request<L> {
+
+		final L owner;
+		final ArrayList<L> listeners = new ArrayList<L>();
+
+		Request(L owner) {
+			this.owner = owner;
+			this.listeners.add(owner);
+		}
+
+	}
+
+}
@@ -24,10 +24,14 @@
 
 package at.zone.madeleine.data;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 public class Issue {
 	
 	public class IssueMetaData {
@@ -39,6 +43,44 @@ public class Issue {
 	public HashMap<String, HashMap<String, Entry> > entries;	// keyed by language, resulting hashmap is keyed by IR/Plist key
 	public ArrayList<String> supportedLanguages;
 	private String dataset;
+	private String dataUrl;		// only known for issues that have not been loaded yet
+	private boolean loaded = true;
+	
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// create an issue known from the master list only (see ContentManager.setLazyLoading()),
+	// the localized names and pdf urls listed there are copied, entries are only known once it is loaded:
+	@SuppressWarnings("unchecked")	// dicts of parsed property lists are always HashMap<String, Object>
+	static Issue createPlaceholder(String dataUrl, HashMap<String, Object> issueData){
+		Issue issue = createPlaceholder(dataUrl);
+		for (Map.Entry<String, Object> entry : issueData.entrySet()) {
+			if(entry.getValue() instanceof HashMap && !entry.getKey().equalsIgnoreCase("config")){
+				String language = entry.getKey();
+				IssueMetaData localizedMetaData = issue.new IssueMetaData();
+				for (Map.Entry<String, Object> localizedIssueData : ((HashMap<String, Object>) entry.getValue()).entrySet()) {
+					String liKey = localizedIssueData.getKey();
+					if(liKey.equalsIgnoreCase("name") && localizedIssueData.getValue() instanceof String){
+						localizedMetaData.name = (String) localizedIssueData.getValue();
+					}
+					if(liKey.equalsIgnoreCase("issue_pdf") && localizedIssueData.getValue() instanceof String){
+						localizedMetaData.issue_pdf = (String) localizedIssueData.getValue();
+					}
+				}
+				issue.metaData.put(language, localizedMetaData);
+				issue.supportedLanguages.add(language);
+			}
+		}
+		return issue;
+	}
+	// create an empty issue, metadata may be added by the caller:
+	static Issue createPlaceholder(String dataUrl){
+		Issue issue = new Issue();
+		issue.entries = new HashMap<String,  HashMap<String, Entry> >();
+		issue.metaData = new HashMap<String, IssueMetaData >();
+		issue.supportedLanguages = new ArrayList<String>();
+		issue.dataUrl = dataUrl;
+		issue.loaded = false;
+		return issue;
+	}
 	
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 	// create Issue structure with data obtained through PListLoader:
@@ -88,6 +130,68 @@ public class Issue {
 		}
 		supportedLanguages = foundLanguages;
 	}
+	// create Issue structure directly from a streamed property list,
+	// the parser has to be positioned on the root <dict> element:
+	public void inflateFromParser(XmlPullParser parser) throws XmlPullParserException, IOException {
+		entries = new HashMap<String,  HashMap<String, Entry> >();
+		metaData = new HashMap<String, IssueMetaData >();
+		
+		ArrayList<String> foundLanguages = new ArrayList<String>();
+		while(PListPullParser.nextChildElement(parser)){
+			String key = PListPullParser.readKey(parser);
+			if(!PListPullParser.nextChildElement(parser)){
+				break;
+			}
+			if(!PListPullParser.isDictionaryElement(parser)){
+				PListPullParser.skip(parser);
+			} else if(key.equalsIgnoreCase("config")){
+				HashMap<String, Object> dict = PListPullParser.readDict(parser);
+				this.dataset = (String) dict.get("dataset");
+			} else {
+				String language = key;
+				foundLanguages.add(language);
+				inflateLanguageFromParser(language, parser);
+			}
+		}
+		supportedLanguages = foundLanguages;
+	}
+	
+	private void inflateLanguageFromParser(String language, XmlPullParser parser) throws XmlPullParserException, IOException {
+		IssueMetaData localizedMetaData = new IssueMetaData();
+		
+		while(PListPullParser.nextChildElement(parser)){
+			String liKey = PListPullParser.readKey(parser);
+			if(!PListPullParser.nextChildElement(parser)){
+				break;
+			}
+			// process metadata:
+			if(liKey.equalsIgnoreCase("name")){
+				localizedMetaData.name = PListPullParser.readString(parser);
+			} else if(liKey.equalsIgnoreCase("issue_pdf")){
+				localizedMetaData.issue_pdf = PListPullParser.readString(parser);
+			// process entries:
+			} else if(liKey.equalsIgnoreCase("entries") && PListPullParser.isDictionaryElement(parser)){
+				HashMap<String, Entry> localizedEntries = new HashMap<String, Entry>();
+				while(PListPullParser.nextChildElement(parser)){
+					String entryKey = PListPullParser.readKey(parser);
+					if(!PListPullParser.nextChildElement(parser)){
+						break;
+					}
+					if(PListPullParser.isDictionaryElement(parser)){
+						Entry newEntry = new Entry();
+						newEntry.inflateFromParser(entryKey, parser);
+						localizedEntries.put(newEntry.key, newEntry);
+					} else {
+						PListPullParser.skip(parser);
+					}
+				}
+				entries.put(language, localizedEntries );
+			} else {
+				PListPullParser.skip(parser);
+			}
+		}
+		metaData.put(language, localizedMetaData );
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - A C C E S S O R S
 	public Entry getEntry(String key, String language){
 		Entry requestedEntry = null;
@@ -107,4 +211,16 @@ public class Issue {
 		return dataset;
 	}
 	
+	void setDataset(String dataset){
+		this.dataset = dataset;
+	}
+	// false for placeholders whose data has not been downloaded yet:
+	public boolean isLoaded(){
+		return loaded;
+	}
+	
+	String getDataUrl(){
+		return dataUrl;
+	}
+	
 }
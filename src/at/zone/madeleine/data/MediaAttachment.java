@@ -16,8 +16,12 @@
 
 package at.zone.madeleine.data;
 
+import java.io.IOException;
 import java.util.HashMap;
 
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 public class MediaAttachment {
 
 	public static enum MediaType {
@@ -47,6 +51,26 @@ public class MediaAttachment {
 		}
 		this.url = (String) data.get("url");
 	}
+	// create MediaAttachment directly from the <dict> the parser is positioned on:
+	void inflateFromParser(MediaType type, XmlPullParser parser) throws XmlPullParserException, IOException {
+		this.type = type;
+		while(PListPullParser.nextChildElement(parser)){
+			String key = PListPullParser.readKey(parser);
+			if(!PListPullParser.nextChildElement(parser)){
+				break;
+			}
+			if(key.equalsIgnoreCase("description")){
+				this.description = PListPullParser.readString(parser);
+			} else if(key.equalsIgnoreCase("url")){
+				this.url = PListPullParser.readString(parser);
+			} else {
+				PListPullParser.skip(parser);
+			}
+		}
+		if(description == null){
+			description = "no description found";
+		}
+	}
 	
 	public static boolean isMediaAttachmentKey(String key){
 		return checkMediaType(key) != null;
@@ -71,14 +95,14 @@ public class MediaAttachment {
 		return type;
 	}
 	
-	private static MediaType checkMediaType(String mediaKey){
+	static MediaType checkMediaType(String mediaKey){
 		String sanKey = sanatizeMediaKey(mediaKey);
 		return mediaTypeMap.get(sanKey);
 	}
 	
 	private static String sanatizeMediaKey(String key){
-		String [] tokens = key.split(" - ");
-		String baseKey = tokens[0];
+		int separator = key.indexOf(" - ");
+		String baseKey = separator >= 0 ? key.substring(0, separator) : key;
 		return baseKey;
 	}
 	
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * NetworkScheduler.java
+ *
+ * Central scheduler for all network work. Requests are queued by
+ * priority class and started in that order, every class has its own
+ * concurrency limit.
+ *
+ * While an interactive request (the image recognition query) is waiting
+ * or running, no new user requested or prefetch transfers are started
+ * and running ones pause at their next awaitTurn() call, so the query
+ * gets the full bandwidth.
+ *
+ * AsyncTasks can only be run on a custom executor from Honeycomb on,
+ * on older devices execute() falls back to the default AsyncTask pool
+ * and only the pausing in awaitTurn() applies.
+ */
+
+package at.zone.madeleine.data;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.AsyncTask;
+import android.os.Build;
+
+public class NetworkScheduler {
+
+	// highest priority first:
+	public enum Priority {
+		INTERACTIVE, VISIBLE, USER_REQUESTED, PREFETCH;
+	}
+
+	private static final int[] DEFAULT_LIMITS = { 2, 4, 2, 2 };	// in the order of Priority
+
+	private static NetworkScheduler instance;
+
+	private final int[] limits = DEFAULT_LIMITS.clone();
+	private final int[] running = new int[Priority.values().length];
+	private final int[] waiting = new int[Priority.values().length];
+	private final PriorityQueue<Job> pending = new PriorityQueue<Job>();
+	private final EnumMap<Priority, Executor> executors = new EnumMap<Priority, Executor>(Priority.class);
+	private final ThreadPoolExecutor threads;
+	private long sequence = 0;
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  I N I T A L Z A T I O N
+	public static synchronized NetworkScheduler getInstance() {
+		if(instance == null){
+			instance = new NetworkScheduler();
+		}
+		return instance;
+	}
+
+	private NetworkScheduler() {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "NetworkScheduler #" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		// the number of running jobs is limited by the priority classes, not by the pool:
+		threads = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+		for(final Priority priority : Priority.values()){
+			executors.put(priority, new Executor() {
+				public void execute(Runnable runnable) {
+					submit(priority, runnable);
+				}
+			});
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  S C H E D U L I N G
+	// run an AsyncTask in the given priority class, params is no varargs parameter as generic varargs are not type safe:
+	public static <Params> void execute(AsyncTask<Params, ?, ?> task, Priority priority, Params[] params) {
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+			task.executeOnExecutor(getInstance().executorFor(priority), params);
+		} else {
+			task.execute(params);
+		}
+	}
+	// executor that queues everything in the given priority class, e.g. for PListLoader.setExecutor():
+	public Executor executorFor(Priority priority) {
+		return executors.get(priority);
+	}
+
+	public synchronized void submit(Priority priority, Runnable runnable) {
+		pending.add(new Job(priority, runnable, sequence++));
+		waiting[priority.ordinal()]++;
+		dispatch();
+	}
+	// called by transfers of lower priority between two chunks of data,
+	// blocks as long as interactive requests are waiting or running:
+	public synchronized void awaitTurn(Priority priority) throws InterruptedException {
+		while(isDeferrable(priority) && hasInteractiveWork()){
+			wait();
+		}
+	}
+	// maximum number of requests of a priority class running at the same time:
+	public synchronized void setConcurrencyLimit(Priority priority, int limit) {
+		limits[priority.ordinal()] = Math.max(1, limit);
+		dispatch();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	// start waiting jobs in priority order as long as their class has capacity:
+	private void dispatch() {
+		ArrayList<Job> blocked = new ArrayList<Job>();
+		Job job;
+		while((job = pending.poll()) != null){
+			if(canStart(job.priority)){
+				start(job);
+			} else {
+				blocked.add(job);
+			}
+		}
+		pending.addAll(blocked);
+	}
+
+	private boolean canStart(Priority priority) {
+		if(running[priority.ordinal()] >= limits[priority.ordinal()]){
+			return false;
+		}
+		return !isDeferrable(priority) || !hasInteractiveWork();
+	}
+
+	private void start(final Job job) {
+		final int index = job.priority.ordinal();
+		waiting[index]--;
+		running[index]++;
+		threads.execute(new Runnable() {
+			public void run() {
+				try {
+					job.runnable.run();
+				} finally {
+					finished(index);
+				}
+			}
+		});
+	}
+
+	private synchronized void finished(int index) {
+		running[index]--;
+		dispatch();
+		notifyAll();
+	}
+
+	private boolean hasInteractiveWork() {
+		int interactive = Priority.INTERACTIVE.ordinal();
+		return running[interactive] > 0 || waiting[interactive] > 0;
+	}
+	// everything below visible images makes room for interactive requests:
+	private static boolean isDeferrable(Priority priority) {
+		return priority.compareTo(Priority.VISIBLE) > 0;
+	}
+
+	private static class Job implements Comparable<Job> {
+
+		final Priority priority;
+		final Runnable runnable;
+		final long sequence;
+
+		Job(Priority priority, Runnable runnable, long sequence) {
+			this.priority = priority;
+			this.runnable = runnable;
+			this.sequence = sequence;
+		}
+		// by priority, first come first served within a class:
+		public int compareTo(Job other) {
+			int result = priority.compareTo(other.priority);
+			if(result == 0){
+				result = sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+			}
+			return result;
+		}
+
+	}
+
+}
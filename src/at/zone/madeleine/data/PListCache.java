@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * PListCache.java
+ *
+ * Keeps the last response body of every property list together
+ * with its validators (ETag, Last-Modified) so PListLoader can
+ * issue conditional requests and reuse the body on 304.
+ *
+ * Entries are stored as <hash>.plist and <hash>.meta in the
+ * plist cache folder provided by ContentManager.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+final class PListCache {
+
+	private static final String BODY_SUFFIX = ".plist";
+	private static final String META_SUFFIX = ".meta";
+	private static final String ETAG = "ETag";
+	private static final String LAST_MODIFIED = "Last-Modified";
+
+	private final File directory;
+
+	PListCache(String path) {
+		this.directory = new File(path);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// add If-None-Match/If-Modified-Since headers if a cached body is present:
+	void applyValidators(String url, HttpRequest request) {
+		if(!getBodyFile(url).isFile()){
+			return;
+		}
+		Properties validators = readValidators(url);
+		if(validators != null){
+			String etag = validators.getProperty(ETAG);
+			String lastModified = validators.getProperty(LAST_MODIFIED);
+			if(etag != null){
+				request.setRequestProperty("If-None-Match", etag);
+			}
+			if(lastModified != null){
+				request.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+	}
+
+	File getBodyFile(String url) {
+		return new File(directory, hashKey(url) + BODY_SUFFIX);
+	}
+	// wrap the response body so it is written to the cache while it is read,
+	// responses without validators are not cached:
+	CachingInputStream openCachingStream(String url, HttpRequest request) throws IOException {
+		InputStream body = request.getInputStream();
+		String etag = request.getHeaderField(ETAG);
+		String lastModified = request.getHeaderField(LAST_MODIFIED);
+
+		if(etag == null && lastModified == null){
+			remove(url);
+			return new CachingInputStream(body, url, null);
+		}
+		Properties validators = new Properties();
+		if(etag != null){
+			validators.setProperty(ETAG, etag);
+		}
+		if(lastModified != null){
+			validators.setProperty(LAST_MODIFIED, lastModified);
+		}
+		return new CachingInputStream(body, url, validators);
+	}
+
+	void remove(String url) {
+		getBodyFile(url).delete();
+		getMetaFile(url).delete();
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - utility methods:
+	private File getMetaFile(String url) {
+		return new File(directory, hashKey(url) + META_SUFFIX);
+	}
+
+	private Properties readValidators(String url) {
+		File metaFile = getMetaFile(url);
+		if(!metaFile.isFile()){
+			return null;
+		}
+		Properties validators = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(metaFile);
+			validators.load(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+		return validators;
+	}
+
+	private void writeValidators(String url, Properties validators) throws IOException {
+		OutputStream out = new FileOutputStream(getMetaFile(url));
+		try {
+			validators.store(out, url);
+		} finally {
+			out.close();
+		}
+	}
+
+	static String hashKey(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] hash = digest.digest(url.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for(byte b : hash){
+				hex.append(Character.forDigit((b >> 4) & 0x0F, 16));
+				hex.append(Character.forDigit(b & 0x0F, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void closeQuietly(InputStream in) {
+		if(in != null){
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// InputStream that copies everything read into a temp file,
+	// commit() moves it into place once the body has been consumed:
+	class CachingInputStream extends FilterInputStream {
+
+		private final String url;
+		private final Properties validators;
+		private File tempFile;
+		private OutputStream out;
+
+		CachingInputStream(InputStream in, String url, Properties validators) throws IOException {
+			super(in);
+			this.url = url;
+			this.validators = validators;
+			if(validators != null){
+				tempFile = File.createTempFile("plist", ".tmp", directory);
+				out = new FileOutputStream(tempFile);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b >= 0 && out != null){
+				out.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = super.read(buffer, offset, count);
+			if(read > 0 && out != null){
+				out.write(buffer, offset, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// route skipped bytes through read() so they end up in the cache:
+			byte[] buffer = new byte[(int) Math.min(n, 4096)];
+			long skipped = 0;
+			while(skipped < n){
+				int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if(read <= 0){
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		// read the rest of the body and store it, returns the complete body or null if it is not cached.
+		// That is the temp file if it could not be moved into place, abort() deletes it after parsing:
+		File commit() throws IOException {
+			if(out == null){
+				return null;
+			}
+			byte[] buffer = new byte[8192];
+			while(read(buffer, 0, buffer.length) > 0){
+				// drain remaining data into the cache
+			}
+			out.close();
+			out = null;
+
+			File bodyFile = getBodyFile(url);
+			if(!tempFile.renameTo(bodyFile)){
+				remove(url);
+				return tempFile;
+			}
+			tempFile = null;
+			try {
+				writeValidators(url, validators);
+			} catch (IOException e) {
+				// the body is complete, it is only not revalidated next time:
+				e.printStackTrace();
+				getMetaFile(url).delete();
+			}
+			return bodyFile;
+		}
+
+		// discard the temp file, no-op once the body has been moved into place:
+		void abort() {
+			if(out != null){
+				try {
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				out = null;
+			}
+			if(tempFile != null){
+				tempFile.delete();
+				tempFile = null;
+			}
+		}
+
+	}
+
+}
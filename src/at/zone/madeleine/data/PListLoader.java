@@ -26,13 +26,36 @@
  * specific structure used by petite madeleine as well as
  * the following data types are supported:
  * <array>, <dict>, <string>.
+ * 
+ * By default the data is parsed while it is streamed from the
+ * network (see PListPullParser). ParserMode.DOM builds a complete
+ * Document first and is kept for comparison.
+ * 
+ * Binary property lists (bplist00) are detected by their header
+ * in streaming mode and decoded by BinaryPListParser.
+ * 
+ * loadIssueFromUrl() skips the generic HashMap structure and
+ * inflates an Issue directly from the parser events.
+ * 
+ * Responses are kept in a PListCache and requested conditionally.
+ * On 304 the cached body is parsed again, or - if a
+ * NotModifiedCallback has been set - parsing is skipped entirely.
  */
 
 package at.zone.madeleine.data;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -43,23 +66,93 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.os.AsyncTask;
+import android.os.Build;
 
 public class PListLoader {
 
+	public static enum ParserMode {
+		STREAMING, DOM;
+	}
+	
 	private String tag; // can be used to pass extra info about the downloaded
 						// data in the callback for example an issueKey 
+	private ParserMode parserMode;
+	private NotModifiedCallback notModifiedCallback;
+	private Executor executor;
+	private int connectTimeout = -1;	// milliseconds, negative uses the HttpConnector default
+	private int readTimeout = -1;
+	private long maxAge = -1;		// seconds, from Cache-Control of the last response
+	
+	public PListLoader(){
+		this(ParserMode.STREAMING);
+	}
+	
+	public PListLoader(ParserMode parserMode){
+		this.parserMode = parserMode;
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
 	// Initiate download and parsing of remote property list:
 	public void loadPListFromUrl(String url, PListLoaderCallback delegate){
-		new DomFromUrlAsyncTask().execute(url, delegate);
+		execute(new PListFromUrlAsyncTask(), url, delegate);
 	}
 
 	public void loadPListFromUrl(String url, PListLoaderCallback delegate, String tag){
 		this.tag = tag;
 		loadPListFromUrl(url, delegate);
 	}
+	// if set, unchanged data (HTTP 304) is reported here instead of being parsed again: 
+	public void setNotModifiedCallback(NotModifiedCallback callback){
+		this.notModifiedCallback = callback;
+	}
+	// Initiate download of remote issue property list decoded straight into an Issue:
+	public void loadIssueFromUrl(String url, IssueLoaderCallback delegate, String tag){
+		this.tag = tag;
+		execute(new IssueFromUrlAsyncTask(), url, delegate);
+	}
+	// run on the given executor instead of the default AsyncTask executor,
+	// which is serial from API 11 on:
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+	}
+	
+	public void setTimeouts(int connectTimeout, int readTimeout){
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+	
+	// max-age of the last response in seconds or -1 if the server did not send one,
+	// valid once the delegate has been called:
+	public long getMaxAge(){
+		return maxAge;
+	}
+	
+	private static long parseMaxAge(String cacheControl){
+		if(cacheControl != null){
+			for(String directive : cacheControl.split(",")){
+				directive = directive.trim();
+				if(directive.regionMatches(true, 0, "max-age=", 0, 8)){
+					try {
+						return Long.parseLong(directive.substring(8).trim());
+					} catch (NumberFormatException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		return -1;
+	}
+	
+	private void execute(PListAsyncTask<?> task, Object... params){
+		if(executor != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB){
+			task.executeOnExecutor(executor, params);
+		} else {
+			task.execute(params);
+		}
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - P A R S I N G
 	// translate Document object with PList data into a HashMap structure:
 	private static HashMap<String, Object> hashMapFromDOM(Document dom){
@@ -159,43 +252,213 @@ public class PListLoader {
 		return tagName.equalsIgnoreCase(name);
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
-	// AsyncTask to download plist and parse its xml structure:
-	private class DomFromUrlAsyncTask extends AsyncTask<Object, Void, Document> {
+	// AsyncTask to download plist and decode its xml or binary structure:
+	private abstract class PListAsyncTask<Result> extends AsyncTask<Object, Void, Result> {
+		
+		protected boolean networkError = false;	// also set for data that could not be parsed, delegates never get null
+		protected boolean notModified = false;
+		
+		// decode a streamed xml property list:
+		protected abstract Result fromXmlStream(InputStream stream) throws XmlPullParserException, IOException;
+		// convert the generic structure produced by the DOM and binary parsers:
+		protected abstract Result fromHashMap(HashMap<String, Object> data);
+		
+		protected Result load(String url){
+			Result data = null;
+			PListCache cache = new PListCache(ContentManager.getInstance().getPListCachePath());
+			PListCache.CachingInputStream cachingStream = null;
+			InputStream stream = null;
+			HttpRequest request = null;
+			
+			try {
+				request = HttpConnector.getInstance().open(url);
+				if(connectTimeout >= 0 && readTimeout >= 0){
+					request.setTimeouts(connectTimeout, readTimeout);
+				}
+				cache.applyValidators(url, request);
+				
+				int responseCode = request.getResponseCode();
+				maxAge = parseMaxAge(request.getHeaderField("Cache-Control"));
+				if(responseCode == HttpURLConnection.HTTP_NOT_MODIFIED){
+					request.close();
+					if(notModifiedCallback != null){
+						notModified = true;
+						return null;
+					}
+					// unchanged, parse the cached copy instead:
+					File cachedFile = cache.getBodyFile(url);
+					stream = new BufferedInputStream(new FileInputStream(cachedFile));
+					if(parserMode != ParserMode.DOM && isBinaryPList(stream)){
+						data = fromHashMap(BinaryPListParser.hashMapFromFile(cachedFile));
+					} else {
+						data = decode(stream);
+					}
+				} else {
+					cachingStream = cache.openCachingStream(url, request);
+					stream = new BufferedInputStream(cachingStream);
+					if(parserMode != ParserMode.DOM && isBinaryPList(stream)){
+						// map the body written by the cache, an uncached body is still unread in the stream:
+						File bodyFile = cachingStream.commit();
+						if(bodyFile != null){
+							data = fromHashMap(BinaryPListParser.hashMapFromFile(bodyFile));
+						} else {
+							data = fromHashMap(hashMapFromBinaryStream(stream));
+						}
+					} else {
+						data = decode(stream);
+						cachingStream.commit();
+					}
+				}
+			} catch (XmlPullParserException e) {
+				e.printStackTrace();
+				networkError = true;
+			} catch (ParseException e) {
+				e.printStackTrace();
+				networkError = true;
+				// binary bodies are cached before they are parsed, their validators must not be sent again:
+				cache.remove(url);
+			} catch (SAXException e) {
+				e.printStackTrace();
+				networkError = true;
+			} catch (ParserConfigurationException e) {
+				e.printStackTrace();
+				networkError = true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				networkError = true;
+			} finally {
+				if(cachingStream != null){
+					cachingStream.abort();
+				}
+				if(stream != null){
+					try {
+						stream.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				if(request != null){
+					request.close();	// hands the connection back to the pool
+				}
+			}
+			// e.g. an empty body, reported like a failed transfer instead of as empty data:
+			if(data == null && !notModified){
+				networkError = true;
+			}
+			return data;
+		}
+		
+		private Result decode(InputStream stream) throws XmlPullParserException, SAXException, ParserConfigurationException, IOException {
+			if(parserMode == ParserMode.DOM){
+				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+				DocumentBuilder db = dbf.newDocumentBuilder();
+				return fromHashMap(hashMapFromDOM(db.parse(stream)));
+			}
+			return fromXmlStream(stream);
+		}
+		
+		// peek at the header without consuming it:
+		private boolean isBinaryPList(InputStream stream) throws IOException {
+			byte[] header = new byte[BinaryPListParser.MAGIC.length];
+			stream.mark(header.length);
+			int length = 0;
+			int read = 0;
+			while(length < header.length && (read = stream.read(header, length, header.length - length)) > 0){
+				length += read;
+			}
+			stream.reset();
+			return BinaryPListParser.isBinaryPList(header, length);
+		}
+		// binary plists are written to a temp file first so they can be memory-mapped:
+		private HashMap<String, Object> hashMapFromBinaryStream(InputStream stream) throws IOException, ParseException {
+			File tempFile = File.createTempFile("plist", ".bplist", new File(ContentManager.getInstance().getApplicationFolderPath()));
+			try {
+				OutputStream fileOutput = new FileOutputStream(tempFile);
+				try {
+					byte[] buffer = new byte[8192];
+					int bufferLength = 0;
+					while ( (bufferLength = stream.read(buffer)) > 0 ) {
+						fileOutput.write(buffer, 0, bufferLength);
+					}
+				} finally {
+					fileOutput.close();
+				}
+				return BinaryPListParser.hashMapFromFile(tempFile);
+			} finally {
+				tempFile.delete();
+			}
+		}
+		
+	}
+	
+	private class PListFromUrlAsyncTask extends PListAsyncTask<HashMap<String, Object>> {
 		
 		private PListLoaderCallback delegate;
-		private boolean networkError = false;
 		
-		protected Document doInBackground(Object... arg0) {
+		protected HashMap<String, Object> doInBackground(Object... arg0) {
 			String url = (String) arg0[0];
 			this.delegate = (PListLoaderCallback) arg0[1];
-			return getDomFromUrl(url);
+			return load(url);
 		}
 		
-		protected void onPostExecute(Document result){
+		protected void onPostExecute(HashMap<String, Object> result){
 			if(networkError){
 				delegate.onNetworkError();
+			} else if(notModified){
+				notModifiedCallback.dataNotModified(tag);
 			} else {
-				delegate.plistDataReady(hashMapFromDOM(result), tag);
+				delegate.plistDataReady(result, tag);
 			}
 		}
 		
-		private Document getDomFromUrl(String url){
-			Document dom = null;
-			
-			try {
-				DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-				DocumentBuilder db = dbf.newDocumentBuilder();
-				dom = db.parse(url);
-			} catch (ParserConfigurationException e) {
-				e.printStackTrace();
-			} catch (SAXException e) {
-				e.printStackTrace();
-			} catch (IOException e) {
-				e.printStackTrace();
-				networkError = true;
+		protected HashMap<String, Object> fromXmlStream(InputStream stream) throws XmlPullParserException, IOException {
+			return PListPullParser.hashMapFromStream(stream);
+		}
+		
+		protected HashMap<String, Object> fromHashMap(HashMap<String, Object> data) {
+			return data;
+		}
+		
+	}
+	
+	private class IssueFromUrlAsyncTask extends PListAsyncTask<Issue> {
+		
+		private IssueLoaderCallback delegate;
+		
+		protected Issue doInBackground(Object... arg0) {
+			String url = (String) arg0[0];
+			this.delegate = (IssueLoaderCallback) arg0[1];
+			return load(url);
+		}
+		
+		protected void onPostExecute(Issue result){
+			if(networkError){
+				delegate.onNetworkError();
+			} else if(notModified){
+				notModifiedCallback.dataNotModified(tag);
+			} else {
+				delegate.issueDataReady(result, tag);
 			}
-			
-			return dom;
+		}
+		
+		protected Issue fromXmlStream(InputStream stream) throws XmlPullParserException, IOException {
+			XmlPullParser parser = PListPullParser.newParser(stream);
+			PListPullParser.moveToRootElement(parser);
+			if(!PListPullParser.isDictionaryElement(parser)){
+				throw new XmlPullParserException("issue property list root is not a dict");
+			}
+			Issue issue = new Issue();
+			issue.inflateFromParser(parser);
+			return issue;
+		}
+		
+		protected Issue fromHashMap(HashMap<String, Object> data) {
+			if(data == null){
+				return null;
+			}
+			Issue issue = new Issue();
+			issue.inflateFromHashMap(data);
+			return issue;
 		}
 		
 	}
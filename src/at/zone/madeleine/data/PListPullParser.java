@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * PListPullParser.java
+ *
+ * Streaming counterpart to the DOM based parsing in PListLoader.
+ * Walks the property list with an XmlPullParser as the data arrives
+ * and builds the same HashMap/ArrayList/String structure without
+ * materializing a Document first.
+ *
+ * Like PListLoader only <dict>, <array> and <string> are supported,
+ * all other elements are skipped.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+final class PListPullParser {
+
+	private PListPullParser() {
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// parse a complete property list from the given stream:
+	static HashMap<String, Object> hashMapFromStream(InputStream stream) throws XmlPullParserException, IOException {
+		XmlPullParser parser = newParser(stream);
+		moveToRootElement(parser);
+
+		if(isArrayElement(parser)){
+			HashMap<String, Object> container = new HashMap<String, Object>();
+			container.put("array", readArray(parser));
+			return container;
+		} else {
+			return readDict(parser);
+		}
+	}
+
+	static XmlPullParser newParser(InputStream stream) throws XmlPullParserException {
+		XmlPullParser parser = Xml.newPullParser();
+		parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+		parser.setInput(stream, null);
+		return parser;
+	}
+	// position the parser on the root <dict> or <array> element inside <plist>:
+	static void moveToRootElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+		int depth = 0;
+		int eventType = parser.getEventType();
+		while(eventType != XmlPullParser.END_DOCUMENT){
+			if(eventType == XmlPullParser.START_TAG){
+				depth++;
+				if(depth == 2){
+					return;
+				}
+			}
+			eventType = parser.next();
+		}
+		throw new XmlPullParserException("no root element found in property list");
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - P A R S I N G
+	// read <dict> the parser is positioned on, leaves parser on its end tag:
+	static HashMap<String, Object> readDict(XmlPullParser parser) throws XmlPullParserException, IOException {
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		String keyName = null;
+
+		while(nextChildElement(parser)){
+			if(keyName == null){
+				keyName = readKey(parser);
+			} else {
+				Object value = readValue(parser);
+				if(value != null){
+					data.put(keyName, value);
+				}
+				keyName = null;
+			}
+		}
+		return data;
+	}
+	// read <array> the parser is positioned on, leaves parser on its end tag:
+	static ArrayList<Object> readArray(XmlPullParser parser) throws XmlPullParserException, IOException {
+		ArrayList<Object> data = new ArrayList<Object>();
+
+		while(nextChildElement(parser)){
+			Object value = readValue(parser);
+			if(value != null){
+				data.add(value);
+			}
+		}
+		return data;
+	}
+	// read any supported value element, unsupported elements are skipped and return null:
+	static Object readValue(XmlPullParser parser) throws XmlPullParserException, IOException {
+		if(isStringElement(parser)){
+			return readText(parser);
+		}
+		if(isDictionaryElement(parser)){
+			return readDict(parser);
+		}
+		if(isArrayElement(parser)){
+			return readArray(parser);
+		}
+		skip(parser);
+		return null;
+	}
+
+	static String readKey(XmlPullParser parser) throws XmlPullParserException, IOException {
+		return readText(parser);
+	}
+
+	static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+		return parser.nextText();
+	}
+	// read a <string> value, any other element is skipped and returns null:
+	static String readString(XmlPullParser parser) throws XmlPullParserException, IOException {
+		if(isStringElement(parser)){
+			return readText(parser);
+		}
+		skip(parser);
+		return null;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - utility methods:
+	// advance to the next child start tag of the current element,
+	// returns false once the end tag of the current element is reached:
+	static boolean nextChildElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+		int eventType = parser.next();
+		while(eventType != XmlPullParser.START_TAG){
+			if(eventType == XmlPullParser.END_TAG || eventType == XmlPullParser.END_DOCUMENT){
+				return false;
+			}
+			eventType = parser.next();
+		}
+		return true;
+	}
+	// skip the element the parser is positioned on including all its children:
+	static void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+		int depth = 1;
+		while(depth > 0){
+			switch(parser.next()){
+				case XmlPullParser.START_TAG:
+					depth++;
+					break;
+				case XmlPullParser.END_TAG:
+					depth--;
+					break;
+				case XmlPullParser.END_DOCUMENT:
+					return;
+			}
+		}
+	}
+
+	static boolean isDictionaryElement(XmlPullParser parser){
+		return isElementType(parser, "dict");
+	}
+
+	static boolean isStringElement(XmlPullParser parser){
+		return isElementType(parser, "string");
+	}
+
+	static boolean isArrayElement(XmlPullParser parser){
+		return isElementType(parser, "array");
+	}
+
+	private static boolean isElementType(XmlPullParser parser, String name){
+		String tagName = parser.getName();
+		return tagName != null && tagName.equalsIgnoreCase(name);
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * PendingFile.java
+ *
+ * A file that is being written to the media cache. Data goes to a temp
+ * file first, commit() syncs it to disk and renames it to its final
+ * name, so a file in the cache is always complete, even if the app was
+ * killed while writing. Obtained from StorageManager.beginWrite(), or
+ * from DownloadCache for downloads that can be resumed with suspend().
+ *
+ * Data is either written sequentially through getOutputStream() or, for
+ * segmented downloads, at explicit positions through getChannel() after
+ * the file has been preallocated with setLength().
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+public class PendingFile {
+
+	private final StorageManager storageManager;
+	private final File tempFile;
+	private final File target;		// may be null if the name is given to commit()
+	private final RandomAccessFile fileOutput;
+	private final OutputStream out;
+	private boolean closed = false;
+
+	PendingFile(StorageManager storageManager, File tempFile, File target) throws IOException {
+		this(storageManager, tempFile, target, false);
+	}
+	// append continues a temp file that has been suspended before:
+	PendingFile(StorageManager storageManager, File tempFile, File target, boolean append) throws IOException {
+		this.storageManager = storageManager;
+		this.tempFile = tempFile;
+		this.target = target;
+		this.fileOutput = new RandomAccessFile(tempFile, "rw");
+		if(append){
+			fileOutput.seek(fileOutput.length());
+		} else {
+			fileOutput.setLength(0);
+		}
+		this.out = new BufferedOutputStream(Channels.newOutputStream(fileOutput.getChannel()), 8192);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	// channel for positional writes, must not be mixed with getOutputStream():
+	public FileChannel getChannel() {
+		return fileOutput.getChannel();
+	}
+	// preallocate the file so segments can be written at their position:
+	public void setLength(long length) throws IOException {
+		fileOutput.setLength(length);
+	}
+
+	public File getTarget() {
+		return target;
+	}
+	// sync the data and move it into place, returns the final file:
+	public File commit() throws IOException {
+		return commit(target);
+	}
+	// same as commit(), for files whose name is only known once they are complete:
+	public File commit(File target) throws IOException {
+		if(closed){
+			throw new IOException("pending file already closed");
+		}
+		closed = true;
+		try {
+			out.flush();
+			fileOutput.getFD().sync();
+		} catch (IOException e) {
+			closeQuietly();
+			tempFile.delete();
+			throw e;
+		}
+		closeQuietly();
+		// a file larger than the whole budget would push out everything else:
+		if(!storageManager.fitsBudget(tempFile.length())){
+			tempFile.delete();
+			throw new IOException(target.getName() + " exceeds the storage budget");
+		}
+		if(!tempFile.renameTo(target)){
+			tempFile.delete();
+			throw new IOException("could not move " + target.getName() + " into place");
+		}
+		storageManager.recordAccess(target);
+		return target;
+	}
+	// keep everything written so far to continue later, no-op after commit():
+	public void suspend() {
+		if(!closed){
+			closed = true;
+			try {
+				out.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			closeQuietly();
+		}
+	}
+	// discard everything written so far, no-op after commit() or suspend():
+	public void abort() {
+		if(!closed){
+			closed = true;
+			closeQuietly();
+			tempFile.delete();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			fileOutput.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * StorageManager.java
+ *
+ * Keeps the downloaded media (pdfs, slides, thumbnails) within a byte
+ * budget and evicts the least recently used files once it is exceeded.
+ *
+ * Every access is appended to a journal file, which is replayed into an
+ * access ordered map on startup, so eviction never has to list or stat
+ * the storage folders. The journal is rewritten once it has grown to
+ * several times the number of tracked files.
+ *
+ * Journal lines: "A <size> <path>" for an access, "R <path>" for a
+ * removal, paths are relative to the application folder. New files and
+ * removals are flushed right away, accesses to known files at most every
+ * few seconds, losing some of them only changes the eviction order.
+ *
+ * New files are written through beginWrite(), which stages them in the
+ * temp folder until they are complete. Leftovers of interrupted writes
+ * are removed by open().
+ *
+ * open() may run on a background thread, all calls that use the tracked
+ * files block until it is done.
+ */
+
+package at.zone.madeleine.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+public class StorageManager {
+
+	private static final String ACCESS = "A";
+	private static final String REMOVE = "R";
+	private static final int COMPACT_THRESHOLD = 1000;
+	private static final long FLUSH_INTERVAL = 5 * 1000;	// milliseconds, for accesses to known files
+
+	private final File rootDir;
+	private final File journalFile;
+	private final File tempDir;
+	private final File[] storageDirs;
+	private final ArrayList<File> excludedFiles = new ArrayList<File>();
+
+	// relative path -> size in bytes, iteration order is least recently used first:
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+	private long totalSize = 0;
+	private long budget;
+	private int journalLines = 0;
+	private Writer journal;
+	private long lastFlush = 0;
+	private boolean opened = false;
+	private final AtomicInteger tempFileCount = new AtomicInteger();
+
+	// storageDirs are tracked in addition to the files directly inside rootDir:
+	public StorageManager(File rootDir, File journalFile, File tempDir, long budget, File... storageDirs) {
+		this.rootDir = rootDir;
+		this.journalFile = journalFile;
+		this.tempDir = tempDir;
+		this.budget = budget;
+		this.storageDirs = storageDirs;
+		this.excludedFiles.add(journalFile);
+		this.excludedFiles.add(new File(journalFile.getPath() + ".tmp"));
+		this.excludedFiles.add(tempDir);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	// files and folders inside the root folder that are never tracked or evicted:
+	public synchronized void exclude(File file) {
+		excludedFiles.add(file);
+	}
+	// replay the journal, the storage folders are only scanned if there is none or it can not be read:
+	public synchronized void open() {
+		removeTempFiles();
+		entries.clear();
+		totalSize = 0;
+		if(!journalFile.isFile() || !readJournal()){
+			scanStorage();
+		}
+		rewriteJournal();
+		opened = true;
+		notifyAll();
+	}
+	// start writing a file, it only appears under its name once it has been committed,
+	// target may be null if the name is passed to PendingFile.commit(File) later:
+	public PendingFile beginWrite(File target) throws IOException {
+		awaitOpen();	// open() removes the files in the temp folder
+		if(!tempDir.isDirectory()){
+			tempDir.mkdirs();
+		}
+		String name = target != null ? target.getName() : "download";
+		File tempFile = new File(tempDir, tempFileCount.incrementAndGet() + "_" + name);
+		return new PendingFile(this, tempFile, target);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  T R A C K I N G
+	// mark a file as used, new files are added and may evict older ones, but never the file itself:
+	public synchronized void recordAccess(File file) {
+		awaitOpen();
+		String path = relativePath(file);
+		if(path == null || !file.isFile()){
+			return;
+		}
+		Long size = entries.get(path);
+		if(size != null){
+			appendToJournal(ACCESS + " " + size + " " + path, false);
+			return;
+		}
+		size = file.length();
+		entries.put(path, size);
+		totalSize += size;
+		appendToJournal(ACCESS + " " + size + " " + path, true);
+		trimToBudget(path);
+	}
+	// false for files that could never be kept, PendingFile.commit() rejects those:
+	public synchronized boolean fitsBudget(long size) {
+		return size <= budget;
+	}
+
+	public synchronized void remove(File file) {
+		awaitOpen();
+		String path = relativePath(file);
+		if(path != null && entries.containsKey(path)){
+			evict(path);
+		}
+	}
+	// forget all files below a folder that has been emptied by other means:
+	public synchronized void forget(File directory) {
+		awaitOpen();
+		String prefix = directory.equals(rootDir) ? "" : relativePath(directory);
+		if(prefix == null){
+			return;
+		}
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext()){
+			Map.Entry<String, Long> entry = iterator.next();
+			if(prefix.length() == 0 || entry.getKey().startsWith(prefix + "/")){
+				totalSize -= entry.getValue();
+				iterator.remove();
+			}
+		}
+		rewriteJournal();
+	}
+	// evict least recently used files until the budget is met:
+	public synchronized void trimToBudget() {
+		awaitOpen();
+		trimToBudget(null);
+	}
+
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		trimToBudget();
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getSize() {
+		awaitOpen();
+		return totalSize;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  J O U R N A L
+	// returns false if the journal could not be read completely:
+	private boolean readJournal() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null){
+				replay(line);
+			}
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			if(reader != null){
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void replay(String line) {
+		try {
+			if(line.startsWith(ACCESS + " ")){
+				int separator = line.indexOf(' ', 2);
+				long size = Long.parseLong(line.substring(2, separator));
+				String path = line.substring(separator + 1);
+				Long previous = entries.put(path, size);
+				totalSize += size - (previous != null ? previous : 0);
+			} else if(line.startsWith(REMOVE + " ")){
+				Long previous = entries.remove(line.substring(2));
+				if(previous != null){
+					totalSize -= previous;
+				}
+			}
+		} catch (NumberFormatException e) {
+			// ignore a line that was only partially written
+		} catch (IndexOutOfBoundsException e) {
+			// ignore a line that was only partially written
+		}
+	}
+
+	// writes that did not finish in an earlier session:
+	private void removeTempFiles() {
+		File[] files = tempDir.listFiles();
+		if(files != null){
+			for(File file : files){
+				file.delete();
+			}
+		}
+	}
+
+	private void scanStorage() {
+		scanDirectory(rootDir, false);
+		for(File directory : storageDirs){
+			scanDirectory(directory, true);
+		}
+	}
+	// storage folders are scanned with their sub folders, e.g. the shards of the DownloadCache:
+	private void scanDirectory(File directory, boolean recursive) {
+		File[] files = directory.listFiles();
+		if(files == null){
+			return;
+		}
+		for(File file : files){
+			String path = relativePath(file);
+			if(path == null){
+				continue;	// excluded
+			}
+			if(file.isDirectory()){
+				if(recursive){
+					scanDirectory(file, true);
+				}
+			} else if(file.isFile() && !entries.containsKey(path)){
+				entries.put(path, file.length());
+				totalSize += file.length();
+			}
+		}
+	}
+	// flush is false for accesses to known files, those are written out with the next flush:
+	private void appendToJournal(String line, boolean flush) {
+		try {
+			if(journal == null){
+				journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+			}
+			journal.write(line);
+			journal.write('\n');
+			long now = SystemClock.uptimeMillis();
+			if(flush || now - lastFlush >= FLUSH_INTERVAL){
+				journal.flush();
+				lastFlush = now;
+			}
+			journalLines++;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(journalLines > COMPACT_THRESHOLD && journalLines > 4 * entries.size()){
+			rewriteJournal();
+		}
+	}
+	// write one line per tracked file in access order and replace the journal with it:
+	private void rewriteJournal() {
+		closeJournal();
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+				for(Map.Entry<String, Long> entry : entries.entrySet()){
+					writer.write(ACCESS + " " + entry.getValue() + " " + entry.getKey() + "\n");
+				}
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if(tempFile.renameTo(journalFile)){
+				journalLines = entries.size();
+			} else {
+				tempFile.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			tempFile.delete();
+		}
+	}
+
+	private void closeJournal() {
+		if(journal != null){
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			journal = null;
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	// wait releases the lock, so open() can finish on its thread meanwhile:
+	private synchronized void awaitOpen() {
+		boolean interrupted = false;
+		while(!opened){
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+	}
+	// keep is a file that has just been added and must not be evicted, or null:
+	private void trimToBudget(String keep) {
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while(totalSize > budget && iterator.hasNext()){
+			Map.Entry<String, Long> entry = iterator.next();
+			if(entry.getKey().equals(keep)){
+				continue;
+			}
+			new File(rootDir, entry.getKey()).delete();
+			totalSize -= entry.getValue();
+			iterator.remove();
+			appendToJournal(REMOVE + " " + entry.getKey(), true);
+		}
+	}
+
+	private void evict(String path) {
+		new File(rootDir, path).delete();
+		totalSize -= entries.remove(path);
+		appendToJournal(REMOVE + " " + path, true);
+	}
+	// path relative to the root folder, null for files that are not tracked:
+	private String relativePath(File file) {
+		String rootPath = rootDir.getAbsolutePath();
+		String filePath = file.getAbsolutePath();
+		if(!filePath.startsWith(rootPath + "/")){
+			return null;
+		}
+		for(File excluded : excludedFiles){
+			String excludedPath = excluded.getAbsolutePath();
+			if(filePath.equals(excludedPath) || filePath.startsWith(excludedPath + "/")){
+				return null;
+			}
+		}
+		return filePath.substring(rootPath.length() + 1);
+	}
+
+}
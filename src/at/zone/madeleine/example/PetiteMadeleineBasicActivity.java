@@ -213,6 +213,14 @@ public class PetiteMadeleineBasicActivity extends Activity implements PetiteMade
 		progressBar.setVisibility(View.INVISIBLE);
 		captureButton.setEnabled(true);
 	}
+	
+	public void downloadProgress(long downloadedBytes, long totalBytes) {
+		if (totalBytes > 0) {
+			textView.setText("downloading " + (downloadedBytes * 100 / totalBytes) + "% of " + (totalBytes / 1024) + " KB");
+		} else {
+			textView.setText("downloading " + (downloadedBytes / 1024) + " KB");
+		}
+	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - P E T I T E  M A D E L E I N E  C A L L B A C K S
 	public void contentManagerUpdateStarted() {
 		textView.setText("updating content data");
@@ -32,7 +32,6 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,6 +40,10 @@ import org.json.JSONTokener;
 
 import android.os.AsyncTask;
 import android.os.Build;
+import at.zone.madeleine.data.HttpConnector;
+import at.zone.madeleine.data.HttpRequest;
+import at.zone.madeleine.data.NetworkScheduler;
+import at.zone.madeleine.data.NetworkScheduler.Priority;
 
 public class PixlinqSearch implements IRService {
 
@@ -81,7 +84,8 @@ public class PixlinqSearch implements IRService {
 		request.apiKey = this.apiKey;
 		request.queryImage = queryImage;
 		
-		new PixlinqAsyncTask().execute(request);
+		// the user is waiting for the result, background transfers make room for it:
+		NetworkScheduler.execute(new PixlinqAsyncTask(), Priority.INTERACTIVE, new PixlinqRequest[] { request });
 	}
 	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - 
 	private String parsePixlinqResponse(String response){
@@ -135,11 +139,11 @@ public class PixlinqSearch implements IRService {
 			byte[] requestBody = getRequestBody(requestData.apiKey, requestData.queryImage);
 			String response = null;
 			
-			URL url;
+			HttpRequest request = null;
 			try {
-				url = new URL("http://api.pixlinq.com/v1/searchimage");
 				// setup HttpRequest:
-				HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+				request = HttpConnector.getInstance().open("http://api.pixlinq.com/v1/searchimage");
+				HttpURLConnection connection = request.getConnection();
 				connection.setConnectTimeout(timeout);
 				connection.setDoInput(true);
 				connection.setDoOutput(true);
@@ -147,16 +151,15 @@ public class PixlinqSearch implements IRService {
 				connection.setRequestProperty("Content-Type", "multipart/form-data; boundary="+postBoundary);
 				connection.setFixedLengthStreamingMode(requestBody.length);
 
-				OutputStream requestBodyStream = new BufferedOutputStream(connection.getOutputStream());
+				// connect:
+				OutputStream requestBodyStream = new BufferedOutputStream(request.getOutputStream());
 				requestBodyStream.write(requestBody);
 				requestBodyStream.close();
 				
-				// connect:
-				connection.connect();
-				int responseCode = connection.getResponseCode();
+				int responseCode = request.getResponseCode();
 				
 				// receive response:
-				InputStream responseStream = connection.getInputStream();
+				InputStream responseStream = request.getInputStream();
 				
 				// convert InputStream to String:
 				BufferedReader bReader = new BufferedReader(new InputStreamReader(responseStream));
@@ -169,7 +172,8 @@ public class PixlinqSearch implements IRService {
 				
 				response = sBuilder.toString();
 				
-				connection.disconnect();
+				request.close();
+				request = null;
 				
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
@@ -178,6 +182,10 @@ public class PixlinqSearch implements IRService {
 				networkError = true;
 			} catch (Exception e) {
 				e.printStackTrace();
+			} finally {
+				if(request != null){
+					request.abort();
+				}
 			}
 			
 			return response;
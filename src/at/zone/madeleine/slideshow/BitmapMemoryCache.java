@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * BitmapMemoryCache.java
+ *
+ * Memory tier in front of the slideshow folder on disc. Decoded bitmaps
+ * are kept by url up to a byte budget and the least recently used ones
+ * are dropped first. Thumbnails and full slides have separate budgets,
+ * so scrolling the thumbnail strip does not push out the slides around
+ * the current one. Both caches are shared by all ImageDownloaders.
+ *
+ * LruCache counts hits and misses, e.g. getSlides().hitCount().
+ *
+ * The cache holds a BitmapPool reference to every bitmap in it, bitmaps
+ * it drops go to the pool once no view shows them anymore.
+ */
+
+package at.zone.madeleine.slideshow;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+public class BitmapMemoryCache extends LruCache<String, Bitmap> {
+
+	// budgets as fractions of the heap available to the app:
+	private static final int SLIDES_HEAP_DIVISOR = 8;
+	private static final int THUMBNAILS_HEAP_DIVISOR = 32;
+
+	private static final BitmapMemoryCache slides = new BitmapMemoryCache(heapBudget(SLIDES_HEAP_DIVISOR));
+	private static final BitmapMemoryCache thumbnails = new BitmapMemoryCache(heapBudget(THUMBNAILS_HEAP_DIVISOR));
+
+	private BitmapMemoryCache(int maxBytes) {
+		super(maxBytes);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	public static BitmapMemoryCache getSlides() {
+		return slides;
+	}
+
+	public static BitmapMemoryCache getThumbnails() {
+		return thumbnails;
+	}
+	// drop both tiers, e.g. when the system is low on memory:
+	public static void clear() {
+		slides.evictAll();
+		thumbnails.evictAll();
+	}
+	// bitmap for the url with a reference for the caller, who has to release it, or null:
+	public Bitmap acquire(String url) {
+		BitmapPool pool = BitmapPool.getInstance();
+		// an entry evicted meanwhile is only released once the caller holds its reference
+		synchronized (pool) {
+			Bitmap bitmap = get(url);
+			if(bitmap != null){
+				pool.retain(bitmap);
+			}
+			return bitmap;
+		}
+	}
+	// use instead of put(), so the cache holds a reference to the bitmap:
+	public void add(String url, Bitmap bitmap) {
+		BitmapPool.getInstance().retain(bitmap);
+		put(url, bitmap);
+	}
+
+	@Override
+	protected void entryRemoved(boolean evicted, String url, Bitmap oldBitmap, Bitmap newBitmap) {
+		BitmapPool.getInstance().release(oldBitmap);
+	}
+	// size in bytes, getByteCount() needs API 12:
+	@Override
+	protected int sizeOf(String url, Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int heapBudget(int divisor) {
+		return (int) Math.min(Runtime.getRuntime().maxMemory() / divisor, Integer.MAX_VALUE);
+	}
+
+}
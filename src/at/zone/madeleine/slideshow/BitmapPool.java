@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * BitmapPool.java
+ *
+ * Bitmaps that are neither shown nor held by the memory cache anymore,
+ * kept to be decoded into again (BitmapFactory.Options.inBitmap) so that
+ * swiping through the gallery does not allocate a new bitmap per slide.
+ *
+ * Bitmaps are reference counted: the memory cache, every view showing
+ * it and every task about to bind it hold a reference. Only bitmaps
+ * whose count drops to zero are pooled, so a bitmap on screen is never
+ * overwritten. Pooled bitmaps are bucketed by size and config, before
+ * KitKat the platform only reuses bitmaps of exactly the decoded size
+ * and without subsampling. Reuse needs Honeycomb, on older devices the
+ * pool stays empty.
+ */
+
+package at.zone.madeleine.slideshow;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+public class BitmapPool {
+
+	private static final int KITKAT = 19;	// Build.VERSION_CODES.KITKAT, newer than the build target
+	private static final int HEAP_DIVISOR = 16;	// budget as fraction of the heap available to the app
+
+	private static final BitmapPool instance = new BitmapPool(Runtime.getRuntime().maxMemory() / HEAP_DIVISOR);
+
+	// weak, bitmaps of views that are gone without being released are simply collected:
+	private final WeakHashMap<Bitmap, Integer> references = new WeakHashMap<Bitmap, Integer>();
+	private final HashMap<String, LinkedList<Bitmap>> buckets = new HashMap<String, LinkedList<Bitmap>>();
+	private final LinkedList<Bitmap> pooled = new LinkedList<Bitmap>();	// least recently released first
+	private long maxBytes;
+	private long size = 0;
+	private int hitCount = 0;
+	private int missCount = 0;
+	private int putCount = 0;
+	private int evictionCount = 0;
+
+	private BitmapPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	public static BitmapPool getInstance() {
+		return instance;
+	}
+
+	public static boolean isReuseSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  R E F E R E N C E S
+	public synchronized void retain(Bitmap bitmap) {
+		Integer count = references.get(bitmap);
+		references.put(bitmap, count == null ? 1 : count + 1);
+	}
+	// the last release hands the bitmap to the pool:
+	public synchronized void release(Bitmap bitmap) {
+		Integer count = references.get(bitmap);
+		if(count == null){
+			return;
+		}
+		if(count > 1){
+			references.put(bitmap, count - 1);
+			return;
+		}
+		references.remove(bitmap);
+		put(bitmap);
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  R E U S E
+	// set inBitmap and inMutable on options that are ready for decoding (bounds read, sample size set):
+	public synchronized void prepareDecode(BitmapFactory.Options options) {
+		if(!isReuseSupported()){
+			return;
+		}
+		options.inMutable = true;
+		Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		int sampleSize = Math.max(1, options.inSampleSize);
+		Bitmap bitmap = null;
+		if(Build.VERSION.SDK_INT >= KITKAT){
+			// any bitmap that is large enough, the decoder rounds subsampled sizes up at most
+			int width = (options.outWidth + sampleSize - 1) / sampleSize;
+			int height = (options.outHeight + sampleSize - 1) / sampleSize;
+			bitmap = takeLargeEnough(width * height * bytesPerPixel(config), config);
+		} else if(sampleSize == 1){
+			bitmap = take(bucketKey(options.outWidth, options.outHeight, config));
+		}
+		if(bitmap != null){
+			hitCount++;
+		} else {
+			missCount++;
+		}
+		options.inBitmap = bitmap;
+	}
+
+	public synchronized void setMaxSize(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trimToSize();
+	}
+
+	public synchronized void clear() {
+		pooled.clear();
+		buckets.clear();
+		size = 0;
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  S T A T I S T I C S
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized long maxSize() {
+		return maxBytes;
+	}
+
+	public synchronized int hitCount() {
+		return hitCount;
+	}
+
+	public synchronized int missCount() {
+		return missCount;
+	}
+
+	public synchronized int putCount() {
+		return putCount;
+	}
+
+	public synchronized int evictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		int requests = hitCount + missCount;
+		int hitPercent = requests != 0 ? (100 * hitCount / requests) : 0;
+		return "BitmapPool[size=" + size + ",maxSize=" + maxBytes + ",bitmaps=" + pooled.size() + ",hits=" + hitCount
+				+ ",misses=" + missCount + ",hitRate=" + hitPercent + "%,puts=" + putCount + ",evictions=" + evictionCount + "]";
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	private void put(Bitmap bitmap) {
+		if(!isReuseSupported() || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null){
+			return;
+		}
+		String key = bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if(bucket == null){
+			bucket = new LinkedList<Bitmap>();
+			buckets.put(key, bucket);
+		}
+		bucket.add(bitmap);
+		pooled.add(bitmap);
+		size += byteCount(bitmap);
+		putCount++;
+		trimToSize();
+	}
+
+	private Bitmap take(String key) {
+		LinkedList<Bitmap> bucket = buckets.get(key);
+		if(bucket == null || bucket.isEmpty()){
+			return null;
+		}
+		Bitmap bitmap = bucket.removeLast();
+		removePooled(bitmap);
+		return bitmap;
+	}
+	// smallest pooled bitmap of the config with at least the given number of bytes:
+	private Bitmap takeLargeEnough(int bytes, Bitmap.Config config) {
+		Bitmap best = null;
+		for(Bitmap bitmap : pooled){
+			int byteCount = byteCount(bitmap);
+			if(bitmap.getConfig() == config && byteCount >= bytes && (best == null || byteCount < byteCount(best))){
+				best = bitmap;
+			}
+		}
+		if(best != null){
+			buckets.get(bucketKey(best.getWidth(), best.getHeight(), best.getConfig())).remove(best);
+			removePooled(best);
+		}
+		return best;
+	}
+
+	private void removePooled(Bitmap bitmap) {
+		pooled.remove(bitmap);
+		size -= byteCount(bitmap);
+	}
+	// drop the least recently released bitmaps, the garbage collector takes them:
+	private void trimToSize() {
+		while(size > maxBytes && !pooled.isEmpty()){
+			Bitmap bitmap = pooled.removeFirst();
+			buckets.get(bucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).remove(bitmap);
+			size -= byteCount(bitmap);
+			evictionCount++;
+		}
+	}
+
+	private static String bucketKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + "@" + config;
+	}
+	// getByteCount() needs API 12:
+	private static int byteCount(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	private static int bytesPerPixel(Bitmap.Config config) {
+		switch(config){
+			case ALPHA_8:
+				return 1;
+			case RGB_565:
+			case ARGB_4444:
+				return 2;
+			default:
+				return 4;
+		}
+	}
+
+}
@@ -17,32 +17,30 @@
 package at.zone.madeleine.slideshow;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.net.http.AndroidHttpClient;
-import android.os.AsyncTask;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import at.zone.madeleine.data.ContentManager;
+import at.zone.madeleine.data.HttpConnector;
+import at.zone.madeleine.data.HttpRequest;
+import at.zone.madeleine.data.InFlightRequests;
 import at.zone.madeleine.data.NetworkTaskCallback;
+import at.zone.madeleine.data.PendingFile;
 
 /**
  * This helper class downloads images from the Internet and binds those with the provided ImageView.
@@ -59,9 +57,66 @@ public class ImageDownloader {
 	
 	private static final String LOG_TAG = "ImageDownloader";
 	
+	// shared by all instances, so an image shown in several views is only loaded once at a time,
+	// keyed by url and decode parameters (see decodeKey):
+	private static final InFlightRequests<BitmapDownloaderTask> inFlightBitmaps = new InFlightRequests<BitmapDownloaderTask>();
+	
+	// names of the files in the slideshow folder, so misses go to the network without touching the disc:
+	private static final ConcurrentHashMap<String, Boolean> discIndex = new ConcurrentHashMap<String, Boolean>();
+	private static final AtomicBoolean discIndexRequested = new AtomicBoolean();
+	private static boolean discIndexLoaded = false;		// ui thread only, like the list below
+	private static final ArrayList<BitmapDownloaderTask> waitingForDiscIndex = new ArrayList<BitmapDownloaderTask>();
+	
 	public int width = 0;
 	public int height = 0;
 	
+	private BitmapMemoryCache memoryCache = BitmapMemoryCache.getSlides();
+	// slides are opaque JPEGs, 565 needs half the memory:
+	private Bitmap.Config bitmapConfig = Bitmap.Config.RGB_565;
+	
+	/**
+	 * Keep the images of this downloader in the thumbnail budget of the memory cache. Thumbnails
+	 * are shown on a transparent bar and keep their alpha channel.
+	 */
+	void setThumbnails(boolean thumbnails) {
+		memoryCache = thumbnails ? BitmapMemoryCache.getThumbnails() : BitmapMemoryCache.getSlides();
+		bitmapConfig = thumbnails ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+	}
+	
+	/**
+	 * Size of the views the images are shown in, images are decoded at the smallest power of two
+	 * subsampling that still fills them. Bitmaps decoded for another size are dropped from memory,
+	 * so views bound again afterwards get the image at the new size.
+	 */
+	public void setTargetSize(int width, int height) {
+		boolean resized = (this.width > 0 || this.height > 0) && (width != this.width || height != this.height);
+		this.width = width;
+		this.height = height;
+		if (resized) {
+			memoryCache.evictAll();
+		}
+	}
+	
+	/**
+	 * Load the image at this url before all others waiting, e.g. the selected slide.
+	 */
+	public void setSelected(String url) {
+		ImagePipeline.getInstance().setSelected(url);
+	}
+	
+	/**
+	 * Start no new downloads and decodes until resumeLoading() is called, e.g. while a gallery
+	 * flings through views that will be off screen before their images could be shown.
+	 * Loading resumes by itself after a second.
+	 */
+	public static void pauseLoading() {
+		ImagePipeline.getInstance().pause();
+	}
+	
+	public static void resumeLoading() {
+		ImagePipeline.getInstance().resume();
+	}
+	
 	/**
 	 * Download the specified image from the Internet and binds it to the provided ImageView. The
 	 * binding is immediate if the image is found in the cache and will be done asynchronously
@@ -73,8 +128,11 @@ public class ImageDownloader {
 	public void download(String url, ImageView imageView, NetworkTaskCallback delegate) {
 		
 		netwrkErrorDelegate = delegate;
+		loadDiscIndex();
 		
-		Bitmap bitmap = getBitmapFromDisc(url);
+		// slides swiped back to are still in memory, the disc and the network are only used
+		// in the background, so binding never reads a file on the ui thread
+		Bitmap bitmap = url != null ? memoryCache.acquire(url) : null;
 
 		if (bitmap == null) {
 			doDownload(url, imageView);
@@ -83,7 +141,8 @@ public class ImageDownloader {
 			}
 		} else {
 			cancelPotentialDownload(url, imageView);
-			imageView.setImageBitmap(bitmap);
+			setImageBitmap(imageView, bitmap);
+			BitmapPool.getInstance().release(bitmap);
 			if(mProgressBar != null) {
 				mProgressBar.setVisibility(View.INVISIBLE);
 			}
@@ -91,23 +150,35 @@ public class ImageDownloader {
 	}
 
 	/**
-	 * Same as download but the image is always downloaded.
+	 * Same as download but the image is always loaded from disc or network.
 	 */
 	private void doDownload(String url, ImageView imageView) {
 		// State sanity: url is guaranteed to never be null in DownloadedDrawable and cache keys.
 		if (url == null) {
-			imageView.setImageDrawable(null);
+			setImageDrawable(imageView, null);
 			return;
 		}
 
 		if (cancelPotentialDownload(url, imageView)) {
-			BitmapDownloaderTask task = new BitmapDownloaderTask(imageView);
+			BitmapDownloaderTask task = new BitmapDownloaderTask(url, imageView);
 				DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
-				imageView.setImageDrawable(downloadedDrawable);
-				task.execute(url);
+				setImageDrawable(imageView, downloadedDrawable);
+				// only the first request for an url is executed, later ones wait for its result
+				if (inFlightBitmaps.attach(task.key, task)) {
+					task.start();
+				}
 		}
 	}
 	
+	/**
+	 * Key of the requests that can share one decoded bitmap. Thumbnails and slides of the same url
+	 * are decoded at other sizes and configs and kept in other memory caches, so they are loaded
+	 * separately.
+	 */
+	private String decodeKey(String url) {
+		return url + "@" + width + "x" + height + "/" + bitmapConfig;
+	}
+	
 	/**
 	 * Returns true if the current download has been canceled or if there was no download in
 	 * progress on this image view.
@@ -119,8 +190,8 @@ public class ImageDownloader {
 		if (bitmapDownloaderTask != null) {
 			String bitmapUrl = bitmapDownloaderTask.url;
 			if ((bitmapUrl == null) || (!bitmapUrl.equals(url))) {
-				 bitmapDownloaderTask.cancel(true);
-			} else {
+				 bitmapDownloaderTask.cancelDownload();
+			} else if (bitmapDownloaderTask.isPending()) {
 				return false; // The same URL is already being downloaded.
 			}
 		}
@@ -143,127 +214,210 @@ public class ImageDownloader {
 		return null;
 	}
 
-	Bitmap downloadBitmap(String url) {
-		// AndroidHttpClient is not allowed to be used from the main thread
-		final HttpClient client = AndroidHttpClient.newInstance("Android");
-		final HttpGet getRequest = new HttpGet(url);
+	/**
+	 * Download the image into the slideshow folder, returns false if that failed.
+	 */
+	boolean downloadToDisc(String url) {
+		// slides of a gallery come from the same host, the connection is reused for all of them
+		HttpRequest request = null;
+		PendingFile pendingFile = null;
 		
 		boolean networkError = false;
 
 		try {
-			HttpResponse response = client.execute(getRequest);
-			final int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode != HttpStatus.SC_OK) {
+			request = HttpConnector.getInstance().open(url);
+			final int statusCode = request.getResponseCode();
+			if (statusCode != HttpURLConnection.HTTP_OK) {
 				networkError = true;
-				return null;
+				return false;
 			}
 			
-			final HttpEntity entity = response.getEntity();
-			if (entity != null) {
-				InputStream inputStream = null;
-				try {
-					inputStream = entity.getContent();
-					// return BitmapFactory.decodeStream(inputStream);
-					// Bug on slow connections, fixed in future release.
-					return BitmapFactory.decodeStream(new FlushedInputStream(inputStream));
-				 } finally {
-					if (inputStream != null) {
-						inputStream.close();
-					}
-					entity.consumeContent();
-				}
-			}
+			// the body is written to the disc cache as it arrives and decoded from there,
+			// so the original file is kept and never re-encoded
+			File file = getDiscFile(url);
+			pendingFile = ContentManager.getInstance().getStorageManager().beginWrite(file);
+			copy(request.getInputStream(), pendingFile.getOutputStream());
+			// hands the connection back to the pool for the next slide
+			request.close();
+			request = null;
+			pendingFile.commit();
+			discIndex.put(file.getName(), Boolean.TRUE);
+			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
-			getRequest.abort();
 			networkError = true;
 		} catch (IllegalStateException e) {
 			e.printStackTrace();
-			getRequest.abort();
 			networkError = true;
 		} catch (Exception e) {
 			e.printStackTrace();
-			getRequest.abort();
 			networkError = true;
 		} finally {
-			if ((client instanceof AndroidHttpClient)) {
-				((AndroidHttpClient) client).close();
+			if (request != null) {
+				request.abort();
+			}
+			if (pendingFile != null) {
+				pendingFile.abort(); // no-op once committed
 			}
 			if(networkError) {
 				// inform the activity that we have network error(s)
 				netwrkErrorDelegate.onNetworkError();
 			}
 		}
-		return null;
+		return false;
 	}
 	
-	/*
-	 * An InputStream that skips the exact number of bytes provided, unless it reaches EOF.
+	/**
+	 * The request that loads an image through the ImagePipeline, from disc or from the network,
+	 * and binds it to the imageView of every task waiting for the same url.
 	 */
-	static class FlushedInputStream extends FilterInputStream {
-		public FlushedInputStream(InputStream inputStream) {
-			super(inputStream);
+	class BitmapDownloaderTask extends ImagePipeline.Request {
+		private final String url;
+		private final String key;
+		private final WeakReference<ImageView> imageViewReference;
+		private boolean bindingCancelled = false;
+		private volatile boolean cancelled = false;
+		private boolean downloaded = false;
+		private volatile boolean loadSucceeded = false;
+		private volatile Bitmap bitmap;
+		
+		public BitmapDownloaderTask(String url, ImageView imageView) {
+			this.url = url;
+			this.key = decodeKey(url);
+			imageViewReference = new WeakReference<ImageView>(imageView);
+		}
+		
+		void start() {
+			// where to load from is only decided once the index is there, so a miss never pays for a failed decode
+			if (!discIndexLoaded) {
+				waitingForDiscIndex.add(this);
+			} else if (isOnDisc(url)) {
+				ImagePipeline.getInstance().enqueueDecode(this);
+			} else {
+				ImagePipeline.getInstance().enqueueNetwork(this);
+			}
+		}
+		
+		/**
+		 * Stop binding to the imageView. The transfer itself is only cancelled if no other
+		 * view waits for the same url.
+		 */
+		void cancelDownload() {
+			bindingCancelled = true;
+			BitmapDownloaderTask owner = inFlightBitmaps.detach(key, this);
+			if (owner != null) {
+				owner.cancelled = true;
+			}
+		}
+		
+		/**
+		 * True as long as the result of this task will still be bound.
+		 */
+		boolean isPending() {
+			return inFlightBitmaps.getListeners(key).contains(this);
 		}
 		
 		@Override
-		public long skip(long n) throws IOException {
-			long totalBytesSkipped = 0L;
-			while (totalBytesSkipped < n) {
-				long bytesSkipped = in.skip(n - totalBytesSkipped);
-				if (bytesSkipped == 0L) {
-					int b = read();
-					if (b < 0) {
-						break;  // we reached EOF
-					} else {
-						bytesSkipped = 1; // we read one byte
-					}
+		String getKey() {
+			return url;
+		}
+		
+		@Override
+		boolean isSmall() {
+			return memoryCache == BitmapMemoryCache.getThumbnails();
+		}
+		
+		@Override
+		boolean isWanted() {
+			if (cancelled) {
+				return false;
+			}
+			for (BitmapDownloaderTask task : inFlightBitmaps.getListeners(key)) {
+				if (task.isShown()) {
+					return true;
 				}
-				totalBytesSkipped += bytesSkipped;
 			}
-			return totalBytesSkipped;
+			return false;
 		}
-	}
-
-	/**
-	 * The actual AsyncTask that will asynchronously download the image.
-	 */
-	class BitmapDownloaderTask extends AsyncTask<String, Void, Bitmap> {
-		private String url;
-		private final WeakReference<ImageView> imageViewReference;
 		
-		public BitmapDownloaderTask(ImageView imageView) {
-			imageViewReference = new WeakReference<ImageView>(imageView);
+		@Override
+		void dropped() {
+			inFlightBitmaps.complete(key, this);
+		}
+		
+		@Override
+		void load() {
+			loadSucceeded = !cancelled && downloadToDisc(url);
+		}
+		
+		@Override
+		void loaded() {
+			downloaded = true;
+			if (loadSucceeded && !cancelled) {
+				ImagePipeline.getInstance().enqueueDecode(this);
+			} else {
+				finish(null);
+			}
+		}
+		
+		@Override
+		void decode() {
+			if (cancelled) {
+				return;
+			}
+			Bitmap decoded = getBitmapFromDisc(url);
+			if (decoded != null) {
+				// held until it is bound, so the cache can not pass it on to the pool before
+				BitmapPool.getInstance().retain(decoded);
+				memoryCache.add(url, decoded);
+			}
+			bitmap = decoded;
+		}
+		
+		@Override
+		void decoded() {
+			// the index may still list a file the StorageManager has evicted
+			if (bitmap == null && !downloaded && !cancelled) {
+				ImagePipeline.getInstance().enqueueNetwork(this);
+			} else {
+				finish(bitmap);
+			}
 		}
 
 		/**
-		 * Actual download method.
+		 * Once the image is loaded, associates it to the imageView of every task waiting for it
 		 */
-		@Override
-		protected Bitmap doInBackground(String... params) {
-			url = params[0];
-			return downloadBitmap(url);
+		private void finish(Bitmap decoded) {
+			bitmap = null;
+			for (BitmapDownloaderTask task : inFlightBitmaps.complete(key, this)) {
+				task.bind(cancelled ? null : decoded);
+			}
+			if (decoded != null) {
+				BitmapPool.getInstance().release(decoded);
+			}
 		}
-
+		
 		/**
-		 * Once the image is downloaded, associates it to the imageView
+		 * Views scrolled out of a gallery are detached from it.
 		 */
-		@Override
-		protected void onPostExecute(Bitmap bitmap) {
-			if (isCancelled()) {
-				bitmap = null;
+		private boolean isShown() {
+			if (bindingCancelled) {
+				return false;
 			}
-			try {
-				saveImageToDisc(url,bitmap);
-			} catch (IOException e) {
-				e.printStackTrace();
+			ImageView imageView = imageViewReference.get();
+			return imageView != null && getBitmapDownloaderTask(imageView) == this && imageView.getParent() != null;
+		}
+		
+		private void bind(Bitmap bitmap) {
+			if (bindingCancelled) {
+				return;
 			}
-			
 			if (imageViewReference != null) {
 				ImageView imageView = imageViewReference.get();
 				BitmapDownloaderTask bitmapDownloaderTask = getBitmapDownloaderTask(imageView);
 				// Change bitmap only if this process is still associated with it
 				if (this == bitmapDownloaderTask) {
-					imageView.setImageBitmap(bitmap);
+					setImageBitmap(imageView, bitmap);
 				}
 				if(mProgressBar != null) {
 					mProgressBar.setVisibility(View.INVISIBLE);
@@ -294,44 +448,156 @@ public class ImageDownloader {
 	}
 
 	/**
-	 * Methods to save and retrieve temporarily images (full images and thumbnails).
-	 * Note: 	These files should be deleted if not used anymore, i.e. if the app has been closed.
-	 * 			onDestroy() in the main activity is a good place for this task (handled by ContentManager). 
+	 * Methods to locate and retrieve images (full images and thumbnails).
+	 * Note: 	These files are kept across sessions, the StorageManager of the ContentManager
+	 * 			evicts the least recently used ones once its storage budget is exceeded.
 	 */
-	private void saveImageToDisc (String url, Bitmap bitmap) throws IOException{
-		if(bitmap != null) {
-			String filename = getFileNameFromURL(url);
-			if(url.contains("thumbnail")){
-				filename = "thumbnail_".concat(filename);
-			}
-			String path = ContentManager.getInstance().getSlideshowPath();
-			OutputStream fOut = null;
-			
-			File file = new File(path, filename);
-			try {
-				fOut = new FileOutputStream(file);
-				bitmap.compress(Bitmap.CompressFormat.JPEG,100, fOut);
-				fOut.flush();
-				fOut.close();
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			}
+	private File getDiscFile(String url) {
+		String filename = getFileNameFromURL(url);
+		if(url.contains("thumbnail")){
+			filename = "thumbnail_".concat(filename);
 		}
+		return new File(ContentManager.getInstance().getSlideshowPath(), filename);
 	}
 	
 	/**
 	 * Retrieve Bitmap from local storage.
 	 */
 	private Bitmap getBitmapFromDisc(String url) {
-		String filename = getFileNameFromURL(url);
-		if(url.contains("thumbnail")){
-			filename = "thumbnail_".concat(filename);
+		File file = getDiscFile(url);
+		Bitmap bitmap = decodeFile(file);
+		if(bitmap != null) {
+			ContentManager.getInstance().getStorageManager().recordAccess(file);
+		} else {
+			discIndex.remove(file.getName());
 		}
-		String path = ContentManager.getInstance().getSlideshowPath();
-		Bitmap bitmap = BitmapFactory.decodeFile(path.concat(filename));
 		return bitmap;
 	}
 	
+	/**
+	 * True if the image is in the slideshow folder, only valid once the index has been loaded.
+	 */
+	private boolean isOnDisc(String url) {
+		return discIndex.containsKey(getDiscFile(url).getName());
+	}
+	
+	/**
+	 * List the slideshow folder once on the decode threads of the ImagePipeline. Tasks started
+	 * until then wait for the listing and are sent to the decoder or the network afterwards.
+	 */
+	private static void loadDiscIndex() {
+		if (!discIndexRequested.compareAndSet(false, true)) {
+			return;
+		}
+		ImagePipeline.getInstance().execute(new Runnable() {
+			public void run() {
+				String[] filenames = new File(ContentManager.getInstance().getSlideshowPath()).list();
+				if (filenames != null) {
+					for (String filename : filenames) {
+						discIndex.put(filename, Boolean.TRUE);
+					}
+				}
+			}
+		}, new Runnable() {
+			public void run() {
+				discIndexLoaded = true;
+				for (BitmapDownloaderTask task : waitingForDiscIndex) {
+					task.start();
+				}
+				waitingForDiscIndex.clear();
+			}
+		});
+	}
+	
+	/**
+	 * Decode an image file for the target size.
+	 */
+	private Bitmap decodeFile(File file) {
+		// read the size first, so the full resolution image is never held in memory
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		if (!prepareDecode(options)) {
+			return null;
+		}
+		// decode into a bitmap of the pool if one fits
+		BitmapPool.getInstance().prepareDecode(options);
+		try {
+			return BitmapFactory.decodeFile(file.getPath(), options);
+		} catch (IllegalArgumentException e) {
+			// the pooled bitmap could not be used for this image
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(file.getPath(), options);
+		}
+	}
+	
+	/**
+	 * Show a bitmap, the view holds a pool reference to it until it shows something else.
+	 */
+	private static void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+		if (bitmap != null) {
+			BitmapPool.getInstance().retain(bitmap);
+		}
+		Bitmap previous = getShownBitmap(imageView);
+		imageView.setImageBitmap(bitmap);
+		if (previous != null) {
+			BitmapPool.getInstance().release(previous);
+		}
+	}
+	
+	private static void setImageDrawable(ImageView imageView, Drawable drawable) {
+		Bitmap previous = getShownBitmap(imageView);
+		imageView.setImageDrawable(drawable);
+		if (previous != null) {
+			BitmapPool.getInstance().release(previous);
+		}
+	}
+	
+	private static Bitmap getShownBitmap(ImageView imageView) {
+		Drawable drawable = imageView.getDrawable();
+		if (drawable instanceof BitmapDrawable) {
+			return ((BitmapDrawable) drawable).getBitmap();
+		}
+		return null;
+	}
+	
+	/**
+	 * Turn options that hold the bounds of an image into options to decode it for the target size.
+	 * Returns false if the bounds could not be read.
+	 */
+	private boolean prepareDecode(BitmapFactory.Options options) {
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return false;
+		}
+		options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, width, height);
+		options.inPreferredConfig = bitmapConfig;
+		options.inJustDecodeBounds = false;
+		return true;
+	}
+	
+	/**
+	 * Largest power of two the image can be subsampled by and still cover the target size when
+	 * scaled with FIT_CENTER, i.e. in at least one dimension. 1 if no target size is set.
+	 */
+	static int calculateSampleSize(int imageWidth, int imageHeight, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			return sampleSize;
+		}
+		while (imageWidth / (sampleSize * 2) >= targetWidth || imageHeight / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+	
+	private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = inputStream.read(buffer)) >= 0) {
+			outputStream.write(buffer, 0, read);
+		}
+	}
+	
 	/**
 	 * Get the filename from a given url.
 	 */
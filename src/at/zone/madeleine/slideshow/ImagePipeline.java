@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/*
+ * ImagePipeline.java
+ *
+ * Stages slideshow images go through: loading from the network (as
+ * VISIBLE requests of the NetworkScheduler), decoding on a pool with
+ * one thread per CPU core and binding on the ui thread.
+ *
+ * Requests wait in a queue per stage and are handed to a stage only
+ * when it has a free slot, so the order can still change: the selected
+ * slide goes first, then thumbnails, then the other slides in the order
+ * they were requested. Requests whose views have been scrolled out of
+ * the gallery are dropped before they reach the network or the decoder.
+ * While the gallery flings nothing new is started.
+ *
+ * All methods have to be called on the ui thread.
+ */
+
+package at.zone.madeleine.slideshow;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import at.zone.madeleine.data.NetworkScheduler;
+import at.zone.madeleine.data.NetworkScheduler.Priority;
+
+final class ImagePipeline {
+
+	private static final int NETWORK_CONCURRENCY = 4;	// same as the VISIBLE limit of the NetworkScheduler
+	private static final long PAUSE_TIMEOUT = 1000;	// milliseconds, in case no selection follows a fling
+
+	private static ImagePipeline instance;
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Executor networkExecutor = NetworkScheduler.getInstance().executorFor(Priority.VISIBLE);
+	private final int decodeConcurrency = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private final ThreadPoolExecutor decodeExecutor = createDecodeExecutor(decodeConcurrency);
+	private final PriorityQueue<Request> networkQueue = new PriorityQueue<Request>();
+	private final PriorityQueue<Request> decodeQueue = new PriorityQueue<Request>();
+	private int networkRunning = 0;
+	private int decodeRunning = 0;
+	private boolean paused = false;
+	private boolean dispatchPosted = false;
+	private String selectedKey;
+	private long sequence = 0;
+
+	private final Runnable dispatcher = new Runnable() {
+		public void run() {
+			dispatchPosted = false;
+			dispatch();
+		}
+	};
+
+	private final Runnable resumer = new Runnable() {
+		public void run() {
+			resume();
+		}
+	};
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  I N I T A L Z A T I O N
+	static ImagePipeline getInstance() {
+		if(instance == null){
+			instance = new ImagePipeline();
+		}
+		return instance;
+	}
+
+	private ImagePipeline() {
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  Q U E U E S
+	void enqueueNetwork(Request request) {
+		enqueue(networkQueue, request);
+	}
+	// for images on disc and for downloaded ones:
+	void enqueueDecode(Request request) {
+		enqueue(decodeQueue, request);
+	}
+	// the request with this key goes first, now and when it is requested again:
+	void setSelected(String key) {
+		selectedKey = key;
+		reorder(networkQueue);
+		reorder(decodeQueue);
+	}
+	// run other background work on the decode threads, e.g. listing the cache folder,
+	// done is called on the ui thread afterwards:
+	void execute(final Runnable work, final Runnable done) {
+		decodeExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					work.run();
+				} finally {
+					handler.post(done);
+				}
+			}
+		});
+	}
+	// start nothing new, e.g. while the gallery flings:
+	void pause() {
+		paused = true;
+		handler.removeCallbacks(resumer);
+		handler.postDelayed(resumer, PAUSE_TIMEOUT);
+	}
+
+	void resume() {
+		handler.removeCallbacks(resumer);
+		if(paused){
+			paused = false;
+			postDispatch();
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	private void enqueue(PriorityQueue<Request> queue, Request request) {
+		if(request.sequence < 0){
+			request.sequence = sequence++;
+		}
+		request.selected = request.getKey().equals(selectedKey);
+		queue.add(request);
+		// after the current layout pass, when new views have been attached:
+		postDispatch();
+	}
+
+	private void reorder(PriorityQueue<Request> queue) {
+		ArrayList<Request> requests = new ArrayList<Request>(queue);
+		queue.clear();
+		for(Request request : requests){
+			request.selected = request.getKey().equals(selectedKey);
+		}
+		queue.addAll(requests);
+	}
+
+	private void postDispatch() {
+		if(!dispatchPosted){
+			dispatchPosted = true;
+			handler.post(dispatcher);
+		}
+	}
+
+	private void dispatch() {
+		if(paused){
+			return;
+		}
+		Request request;
+		while(decodeRunning < decodeConcurrency && (request = next(decodeQueue)) != null){
+			decodeRunning++;
+			decodeExecutor.execute(new StageRunnable(request, false));
+		}
+		while(networkRunning < NETWORK_CONCURRENCY && (request = next(networkQueue)) != null){
+			networkRunning++;
+			networkExecutor.execute(new StageRunnable(request, true));
+		}
+	}
+	// next request that is still wanted, the others are dropped:
+	private Request next(PriorityQueue<Request> queue) {
+		Request request;
+		while((request = queue.poll()) != null){
+			if(request.isWanted()){
+				return request;
+			}
+			request.dropped();
+		}
+		return null;
+	}
+
+	private void finished(Request request, boolean network) {
+		if(network){
+			networkRunning--;
+			request.loaded();
+		} else {
+			decodeRunning--;
+			request.decoded();
+		}
+		dispatch();
+	}
+
+	private static ThreadPoolExecutor createDecodeExecutor(int concurrency) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger(1);
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ImagePipeline decode #" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD){
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+	// runs one stage in the background and reports back on the ui thread:
+	private class StageRunnable implements Runnable {
+
+		private final Request request;
+		private final boolean network;
+
+		StageRunnable(Request request, boolean network) {
+			this.request = request;
+			this.network = network;
+		}
+
+		public void run() {
+			try {
+				if(network){
+					request.load();
+				} else {
+					request.decode();
+				}
+			} finally {
+				handler.post(new Runnable() {
+					public void run() {
+						finished(request, network);
+					}
+				});
+			}
+		}
+
+	}
+
+	/**
+	 * An image moving through the pipeline. load() and decode() run in the background,
+	 * all other methods on the ui thread.
+	 */
+	abstract static class Request implements Comparable<Request> {
+
+		private long sequence = -1;
+		private boolean selected = false;
+
+		abstract String getKey();
+
+		// thumbnails go before slides that are not selected:
+		abstract boolean isSmall();
+
+		// false once no view waits for the image anymore:
+		abstract boolean isWanted();
+
+		abstract void dropped();
+
+		abstract void load();
+
+		abstract void loaded();
+
+		abstract void decode();
+
+		abstract void decoded();
+
+		public int compareTo(Request other) {
+			if(selected != other.selected){
+				return selected ? -1 : 1;
+			}
+			if(isSmall() != other.isSmall()){
+				return isSmall() ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence > other.sequence ? 1 : 0);
+		}
+
+	}
+
+}
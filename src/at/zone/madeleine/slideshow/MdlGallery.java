@@ -52,6 +52,8 @@ public class MdlGallery extends Gallery{
 	
 	public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
 		velocityX = 0; // stop bouncing
+		// slides passed on the way would only be loaded to be dropped, resumed once one is selected
+		ImageDownloader.pauseLoading();
 		
 		if(lastPosition != this.getSelectedItemPosition()) {
 			// reset the onTouchListener if the image-position changed
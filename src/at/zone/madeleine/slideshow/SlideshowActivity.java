@@ -31,6 +31,7 @@ import android.view.WindowManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.Gallery;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
@@ -121,6 +122,20 @@ public class SlideshowActivity extends Activity implements PListLoaderCallback,
 				return false;
 			}
 		} );
+		
+		// the selected slide is loaded first, loading was paused while the gallery flinged
+		imgGallery.setOnItemSelectedListener(new OnItemSelectedListener() {
+			public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+				if (imageAdapter != null) {
+					imageAdapter.getImageDownloader().setSelected(imageAdapter.getItem(position));
+				}
+				ImageDownloader.resumeLoading();
+			}
+			
+			public void onNothingSelected(AdapterView<?> parent) {
+				ImageDownloader.resumeLoading();
+			}
+		});
 
 		
 		// check the orientation and set the appropriate spacing (in case you want different spacing for different orientation)
@@ -147,6 +162,14 @@ public class SlideshowActivity extends Activity implements PListLoaderCallback,
 		
 		ContentManager.getInstance().unregisterDelegate(this);
 	}
+	
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		// decoded slides can be read from disc again
+		BitmapMemoryCache.clear();
+		BitmapPool.getInstance().clear();
+	}
 
 	// to enable this method add android:configChanges="orientation|screenSize" to the activity attribute:
 	public void onConfigurationChanged(Configuration newConfig) {
@@ -157,8 +180,9 @@ public class SlideshowActivity extends Activity implements PListLoaderCallback,
 		
 		height = display.getHeight();
 		width = display.getWidth();
-		imageAdapter.getImageDownloader().height = height;
-		imageAdapter.getImageDownloader().width = width;
+		// decode the slides again for the new screen size
+		imageAdapter.getImageDownloader().setTargetSize(width, height);
+		imageAdapter.notifyDataSetChanged();
 		
 		if (newConfig.orientation == Configuration.ORIENTATION_LANDSCAPE) {
 			imgGallery.setSpacing(10);
@@ -196,8 +220,7 @@ public class SlideshowActivity extends Activity implements PListLoaderCallback,
 		// now we have the images in the right order and can give it to the imageAdapter
 		imageAdapter = new ImageAdapter(progressbar,this);
 		imageAdapter.setURLS(fullImageURLs);
-		imageAdapter.getImageDownloader().height = height;
-		imageAdapter.getImageDownloader().width = width;
+		imageAdapter.getImageDownloader().setTargetSize(width, height);
 		imgGallery.setAdapter(imageAdapter);
 		
 		// TODO use the imageDescription for whatever you want
@@ -219,5 +242,15 @@ public class SlideshowActivity extends Activity implements PListLoaderCallback,
 	
 	}
 
+	@Override
+	public void issueAvailable(ContentManager contentManager, String issueKey) {
+		// slides do not depend on single issues
+	}
+
+	@Override
+	public void issueUnavailable(ContentManager contentManager, String issueKey) {
+		// slides do not depend on single issues
+	}
+
 
 }
\ No newline at end of file
@@ -26,12 +26,17 @@ import at.zone.madeleine.data.NetworkTaskCallback;
 
 public class ThumbnailAdapter extends ImageAdapter{
 	
+	private static final int THUMBNAIL_WIDTH = 100;	// dip
+	private static final int THUMBNAIL_HEIGHT = 66;
+	
 	private final float mDensity;
 	private NetworkTaskCallback netwrkErrorDelegate;
 	
 	public ThumbnailAdapter(Context c, NetworkTaskCallback delegate) {
 		mDensity = c.getResources().getDisplayMetrics().density;
 		netwrkErrorDelegate = delegate;
+		imageDownloader.setThumbnails(true);
+		imageDownloader.setTargetSize(thumbnailSize(THUMBNAIL_WIDTH), thumbnailSize(THUMBNAIL_HEIGHT));
 	}
 
 	public View getView(int position, View view, ViewGroup parent) {
@@ -40,13 +45,18 @@ public class ThumbnailAdapter extends ImageAdapter{
 		}
 		
 		getImageDownloader().download(getRemoteURLS()[position], ((ImageView)view),netwrkErrorDelegate);
-		view.setLayoutParams(new Gallery.LayoutParams((int)(100 * mDensity + 0.5f), (int)(66 * mDensity + 0.5f)));
+		view.setLayoutParams(new Gallery.LayoutParams(thumbnailSize(THUMBNAIL_WIDTH), thumbnailSize(THUMBNAIL_HEIGHT)));
 		((ImageView)view).setScaleType(ImageView.ScaleType.FIT_CENTER);
 		view.setBackgroundColor(Color.TRANSPARENT);
 
 		return view;
 	}
 
+	// dip to pixels:
+	private int thumbnailSize(int dip) {
+		return (int)(dip * mDensity + 0.5f);
+	}
+
 	public ImageDownloader getImageDownloader() {
 		return imageDownloader;
 	}
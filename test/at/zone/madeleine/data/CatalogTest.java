@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2012 ZONE Media GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *		http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * CatalogTest.java
+ *
+ * Host JUnit stress test for the Catalog publishing of ContentManager:
+ * updates swap catalogs into an AtomicReference while readers look up
+ * issues concurrently. Every catalog a reader takes has to be complete
+ * and consistent, and no concurrent change may be lost.
+ */
+
+package at.zone.madeleine.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CatalogTest {
+
+	private static final int ISSUES_PER_UPDATE = 20;
+	private static final int UPDATES = 2000;
+	private static final int READERS = 4;
+	private static final int LAZY_LOADERS = 4;
+	private static final int LAZY_LOADS = 500;
+
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+	@Test
+	public void withIssuesKeepsActiveIssueIfListed() {
+		Catalog first = new Catalog(issuesOfGeneration(1), key(0), key(3), Catalog.DEFAULT_LANGUAGE);
+		Catalog second = first.withIssues(issuesOfGeneration(2), key(0));
+		assertEquals(generation(2), second.activeIssue.getDataset());
+		assertSame(second.getIssue(key(3)), second.activeIssue);
+
+		HashMap<String, Issue> withoutActive = issuesOfGeneration(3);
+		withoutActive.remove(key(3));
+		Catalog third = second.withIssues(withoutActive, key(0));
+		assertSame(third.defaultIssue, third.activeIssue);
+	}
+
+	@Test
+	public void withIssueReplacesActiveIssue() {
+		Catalog catalog = new Catalog(issuesOfGeneration(1), key(0), key(3), Catalog.DEFAULT_LANGUAGE);
+		Issue replacement = newIssue(generation(2));
+		Catalog updated = catalog.withIssue(key(3), replacement);
+		assertSame(replacement, updated.activeIssue);
+		assertEquals(generation(1), catalog.activeIssue.getDataset());
+	}
+
+	@Test
+	public void issuesCannotBeModified() {
+		Catalog catalog = new Catalog(issuesOfGeneration(1), key(0), null, Catalog.DEFAULT_LANGUAGE);
+		try {
+			catalog.issues.put(key(ISSUES_PER_UPDATE), newIssue(generation(1)));
+			fail("issues of a published catalog must be unmodifiable");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  S T R E S S
+	// one thread publishes complete updates and changes active issue and language,
+	// the readers check every catalog they take while that happens:
+	@Test
+	public void readersAlwaysSeeConsistentCatalogs() throws Throwable {
+		final AtomicReference<Catalog> published = new AtomicReference<Catalog>(new Catalog(issuesOfGeneration(0), key(0), null, Catalog.DEFAULT_LANGUAGE));
+		final AtomicBoolean updating = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicInteger reads = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ArrayList<Thread> readers = new ArrayList<Thread>();
+		for(int i=0;i<READERS;i++){
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						while(updating.get() && failure.get() == null){
+							checkConsistent(published.get());
+							reads.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "CatalogTest reader #" + i);
+			readers.add(reader);
+			reader.start();
+		}
+
+		start.countDown();
+		try {
+			for(int update=1;update<=UPDATES && failure.get() == null;update++){
+				// same compare-and-set loops as ContentManager:
+				Catalog current;
+				do {
+					current = published.get();
+				} while(!published.compareAndSet(current, current.withIssues(issuesOfGeneration(update), key(update % ISSUES_PER_UPDATE))));
+				do {
+					current = published.get();
+				} while(!published.compareAndSet(current, current.withActiveIssue(current.getIssue(key((update * 7) % ISSUES_PER_UPDATE)))));
+				do {
+					current = published.get();
+				} while(!published.compareAndSet(current, current.withLanguage(update % 2 == 0 ? "de" : "en")));
+			}
+		} finally {
+			updating.set(false);
+			for(Thread reader : readers){
+				reader.join();
+			}
+		}
+		if(failure.get() != null){
+			throw failure.get();
+		}
+		assertTrue("readers did not run", reads.get() > 0);
+		assertEquals(generation(UPDATES), published.get().defaultIssue.getDataset());
+	}
+	// lazy loads replace single issues from several threads at once, none of them may be lost:
+	@Test
+	public void concurrentSingleIssueUpdatesAreNotLost() throws Throwable {
+		final AtomicReference<Catalog> published = new AtomicReference<Catalog>(new Catalog(issuesOfGeneration(0), key(0), null, Catalog.DEFAULT_LANGUAGE));
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ArrayList<Thread> loaders = new ArrayList<Thread>();
+		for(int i=0;i<LAZY_LOADERS;i++){
+			final int loader = i;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for(int j=0;j<LAZY_LOADS;j++){
+							String issueKey = "lazy-" + loader + "-" + j;
+							Issue issue = newIssue(generation(0));
+							Catalog current;
+							do {
+								current = published.get();
+								checkConsistent(current);
+							} while(!published.compareAndSet(current, current.withIssue(issueKey, issue)));
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, "CatalogTest loader #" + i);
+			loaders.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for(Thread thread : loaders){
+			thread.join();
+		}
+		if(failure.get() != null){
+			throw failure.get();
+		}
+		Catalog result = published.get();
+		assertEquals(ISSUES_PER_UPDATE + LAZY_LOADERS * LAZY_LOADS, result.issues.size());
+		for(int i=0;i<LAZY_LOADERS;i++){
+			for(int j=0;j<LAZY_LOADS;j++){
+				assertTrue(result.containsIssue("lazy-" + i + "-" + j));
+			}
+		}
+	}
+	// - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -  utility methods:
+	// a catalog never mixes issues of two updates and its issues always belong to it:
+	private static void checkConsistent(Catalog catalog) {
+		assertFalse(catalog.isEmpty());
+		String generation = catalog.defaultIssue.getDataset();
+		assertSame(catalog.defaultIssue, catalog.getIssue(catalog.defaultIssueKey));
+		assertTrue("active issue is not listed", catalog.issues.containsValue(catalog.activeIssue));
+		assertEquals(catalog.defaultIssueKey, catalog.keyForIssue(catalog.defaultIssue));
+		for(Map.Entry<String, Issue> entry : catalog.issues.entrySet()){
+			if(!entry.getKey().startsWith("lazy-")){
+				assertEquals(generation, entry.getValue().getDataset());
+			}
+		}
+		assertTrue("de".equals(catalog.language) || "en".equals(catalog.language));
+		assertNull(catalog.getIssue("missing"));
+	}
+
+	private static HashMap<String, Issue> issuesOfGeneration(int update) {
+		HashMap<String, Issue> issues = new HashMap<String, Issue>();
+		for(int i=0;i<ISSUES_PER_UPDATE;i++){
+			issues.put(key(i), newIssue(generation(update)));
+		}
+		return issues;
+	}
+
+	private static Issue newIssue(String dataset) {
+		Issue issue = new Issue();
+		issue.setDataset(dataset);
+		return issue;
+	}
+
+	private static String key(int index) {
+		return "issue-" + index;
+	}
+
+	private static String generation(int update) {
+		return "generation-" + update;
+	}
+
+}